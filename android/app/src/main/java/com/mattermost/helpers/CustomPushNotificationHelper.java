@@ -18,6 +18,7 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
@@ -31,6 +32,7 @@ import androidx.core.graphics.drawable.IconCompat;
 
 import com.mattermost.rnbeta.*;
 import com.mattermost.rnutils.helpers.NotificationHelper;
+import com.mattermost.rnutils.helpers.PushNotificationTracer;
 import com.nozbe.watermelondb.WMDatabase;
 
 import java.io.IOException;
@@ -38,10 +40,14 @@ import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Date;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
+import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.IncorrectClaimException;
 import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.MissingClaimException;
 import okhttp3.OkHttpClient;
@@ -72,7 +78,33 @@ public class CustomPushNotificationHelper {
 
     private static final BitmapCache bitmapCache = new BitmapCache();
 
-    private static void addMessagingStyleMessages(Context context, NotificationCompat.MessagingStyle messagingStyle, String conversationTitle, Bundle bundle) {
+    private static final class SignatureVerifier {
+        final String signingKey;
+        final String deviceToken;
+        final JwtParser parser;
+
+        SignatureVerifier(String signingKey, String deviceToken, JwtParser parser) {
+            this.signingKey = signingKey;
+            this.deviceToken = deviceToken;
+            this.parser = parser;
+        }
+    }
+
+    private static final class VersionGate {
+        final String version;
+        final boolean accepted;
+
+        VersionGate(String version, boolean accepted) {
+            this.version = version;
+            this.accepted = accepted;
+        }
+    }
+
+    // Per server, rebuilt when the signing key, the device token or the server version change
+    private static final Map<String, SignatureVerifier> signatureVerifiers = new ConcurrentHashMap<>();
+    private static final Map<String, VersionGate> versionGates = new ConcurrentHashMap<>();
+
+    private static void addMessagingStyleMessages(Context context, NotificationCompat.MessagingStyle messagingStyle, String conversationTitle, Bundle bundle, PushNotificationTracer.Trace trace, PushNotificationDeadline deadline, boolean loadAvatars) {
         String message = bundle.getString("message", bundle.getString("body"));
         String senderId = bundle.getString("sender_id");
         String serverUrl = bundle.getString("server_url");
@@ -94,7 +126,7 @@ public class CustomPushNotificationHelper {
 
         if (serverUrl != null && type != null && !type.equals(CustomPushNotificationHelper.PUSH_TYPE_SESSION)) {
             try {
-                Bitmap avatar = userAvatar(context, serverUrl, senderId, urlOverride);
+                Bitmap avatar = userAvatar(context, serverUrl, senderId, urlOverride, trace, deadline, loadAvatars);
                 if (avatar != null) {
                     sender.setIcon(IconCompat.createWithBitmap(avatar));
                 }
@@ -187,6 +219,10 @@ public class CustomPushNotificationHelper {
     }
 
     public static NotificationCompat.Builder createNotificationBuilder(Context context, PendingIntent intent, Bundle bundle, boolean createSummary) {
+        return createNotificationBuilder(context, intent, bundle, createSummary, null, null, true);
+    }
+
+    public static NotificationCompat.Builder createNotificationBuilder(Context context, PendingIntent intent, Bundle bundle, boolean createSummary, PushNotificationTracer.Trace trace, PushNotificationDeadline deadline, boolean loadAvatars) {
         final NotificationCompat.Builder notification = new NotificationCompat.Builder(context, CHANNEL_HIGH_IMPORTANCE_ID);
 
         String channelId = bundle.getString("channel_id");
@@ -198,8 +234,8 @@ public class CustomPushNotificationHelper {
         String groupId = is_crt_enabled && !android.text.TextUtils.isEmpty(rootId) ? rootId : channelId;
 
         addNotificationExtras(notification, bundle);
-        setNotificationIcons(context, notification, bundle);
-        setNotificationMessagingStyle(context, notification, bundle);
+        setNotificationIcons(context, notification, bundle, trace, deadline, loadAvatars);
+        setNotificationMessagingStyle(context, notification, bundle, trace, deadline, loadAvatars);
         setNotificationGroup(notification, groupId, createSummary);
         setNotificationBadgeType(notification);
 
@@ -269,67 +305,12 @@ public class CustomPushNotificationHelper {
                 return false;
             }
 
-            if (!version.matches("[0-9]+(\\.[0-9]+)*")) {
-                Log.i("Mattermost Notifications Signature verification", "Invalid server version");
-                return false;
-            }
-
-            String[] parts = version.split("\\.");
-            int major = parts.length > 0 ? Integer.parseInt(parts[0]) : 0;
-            int minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
-            int patch = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
-
-            int[][] targets = {{9,8,0},{9,7,3},{9,6,3},{9,5,5},{8,1,14}};
-            boolean rejected = false;
-            for (int i = 0; i < targets.length; i++) {
-                boolean first = i == 0;
-                int[] targetVersion = targets[i];
-                int majorTarget = targetVersion[0];
-                int minorTarget = targetVersion[1];
-                int patchTarget = targetVersion[2];
-
-                if (major > majorTarget) {
-                    // Only reject if we are considering the first (highest) version.
-                    // Any version in between should be acceptable.
-                    rejected = first;
-                    break;
-                }
-
-                if (major < majorTarget) {
-                    // Continue to see if it complies with a smaller target
-                    continue;
-                }
-
-                // Same major
-                if (minor > minorTarget) {
-                    // Only reject if we are considering the first (highest) version.
-                    // Any version in between should be acceptable.
-                    rejected = first;
-                    break;
-                }
-
-                if (minor < minorTarget) {
-                    // Continue to see if it complies with a smaller target
-                    continue;
-                }
-
-                // Same major and same minor
-                if (patch >= patchTarget) {
-                    rejected = true;
-                    break;
-                }
-
-                // Patch is lower than target
-                return true;
-            }
-
-            if (rejected) {
-                Log.i("Mattermost Notifications Signature verification", "Server version should send signature");
-                return false;
+            VersionGate gate = versionGates.get(serverUrl);
+            if (gate == null || !gate.version.equals(version)) {
+                gate = new VersionGate(version, acceptsUnsignedPushes(version));
+                versionGates.put(serverUrl, gate);
             }
-
-            // Version number is below any of the targets, so it should not send the signature
-            return true;
+            return gate.accepted;
         }
 
         String signingKey = queryConfigSigningKey(db);
@@ -339,10 +320,6 @@ public class CustomPushNotificationHelper {
         }
 
         try {
-            byte[] encoded = Base64.decode(signingKey, 0);
-            KeyFactory kf = KeyFactory.getInstance("EC");
-            PublicKey pubKey = (PublicKey) kf.generatePublic(new X509EncodedKeySpec(encoded));
-
             String storedDeviceToken = getDeviceToken(dbHelper);
             if (storedDeviceToken == null) {
                 Log.i("Mattermost Notifications Signature verification", "No device token stored");
@@ -359,12 +336,30 @@ public class CustomPushNotificationHelper {
                 return false;
             }
 
-            Jwts.parser()
-                    .require("ack_id", ackId)
-                    .require("device_id", deviceToken)
-                    .verifyWith((PublicKey) pubKey)
-                    .build()
-                    .parseSignedClaims(signature);
+            // The parser is built once per signing key and device token, the ack id is checked for each push
+            SignatureVerifier verifier = signatureVerifiers.get(serverUrl);
+            if (verifier == null || !verifier.signingKey.equals(signingKey) || !verifier.deviceToken.equals(deviceToken)) {
+                byte[] encoded = Base64.decode(signingKey, 0);
+                KeyFactory kf = KeyFactory.getInstance("EC");
+                PublicKey pubKey = (PublicKey) kf.generatePublic(new X509EncodedKeySpec(encoded));
+                JwtParser parser = Jwts.parser()
+                        .require("device_id", deviceToken)
+                        .verifyWith(pubKey)
+                        .build();
+                verifier = new SignatureVerifier(signingKey, deviceToken, parser);
+                signatureVerifiers.put(serverUrl, verifier);
+            }
+
+            Claims claims = verifier.parser.parseSignedClaims(signature).getPayload();
+            Object claimedAckId = claims.get("ack_id");
+            if (claimedAckId == null) {
+                Log.i("Mattermost Notifications Signature verification", "Missing claim: ack_id");
+                return false;
+            }
+            if (!claimedAckId.equals(ackId)) {
+                Log.i("Mattermost Notifications Signature verification", "Incorrect claim: ack_id");
+                return false;
+            }
         } catch (MissingClaimException e) {
             Log.i("Mattermost Notifications Signature verification", String.format("Missing claim: %s", e.getMessage()));
             e.printStackTrace();
@@ -386,6 +381,86 @@ public class CustomPushNotificationHelper {
         return true;
     }
 
+    private static boolean acceptsUnsignedPushes(String version) {
+        if (!version.matches("[0-9]+(\\.[0-9]+)*")) {
+            Log.i("Mattermost Notifications Signature verification", "Invalid server version");
+            return false;
+        }
+
+        String[] parts = version.split("\\.");
+        int major = parts.length > 0 ? Integer.parseInt(parts[0]) : 0;
+        int minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        int patch = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+
+        int[][] targets = {{9,8,0},{9,7,3},{9,6,3},{9,5,5},{8,1,14}};
+        boolean rejected = false;
+        for (int i = 0; i < targets.length; i++) {
+            boolean first = i == 0;
+            int[] targetVersion = targets[i];
+            int majorTarget = targetVersion[0];
+            int minorTarget = targetVersion[1];
+            int patchTarget = targetVersion[2];
+
+            if (major > majorTarget) {
+                // Only reject if we are considering the first (highest) version.
+                // Any version in between should be acceptable.
+                rejected = first;
+                break;
+            }
+
+            if (major < majorTarget) {
+                // Continue to see if it complies with a smaller target
+                continue;
+            }
+
+            // Same major
+            if (minor > minorTarget) {
+                // Only reject if we are considering the first (highest) version.
+                // Any version in between should be acceptable.
+                rejected = first;
+                break;
+            }
+
+            if (minor < minorTarget) {
+                // Continue to see if it complies with a smaller target
+                continue;
+            }
+
+            // Same major and same minor
+            if (patch >= patchTarget) {
+                rejected = true;
+                break;
+            }
+
+            // Patch is lower than target
+            return true;
+        }
+
+        if (rejected) {
+            Log.i("Mattermost Notifications Signature verification", "Server version should send signature");
+            return false;
+        }
+
+        // Version number is below any of the targets, so it should not send the signature
+        return true;
+    }
+
+    /**
+     * Loads the jjwt and EC key classes in the background so that the first push does not pay for it
+     */
+    public static void warmUpSignatureVerification() {
+        new Thread(() -> {
+            try {
+                long start = SystemClock.elapsedRealtime();
+                KeyFactory.getInstance("EC");
+                Jwts.parser().build();
+                PushNotificationTracer.record("jwt_warm_up", SystemClock.elapsedRealtime() - start);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "jwt-warm-up").start();
+    }
+
     private static Bitmap getCircleBitmap(Bitmap bitmap) {
         final Bitmap output = Bitmap.createBitmap(bitmap.getWidth(),
                 bitmap.getHeight(), Bitmap.Config.ARGB_8888);
@@ -423,7 +498,7 @@ public class CustomPushNotificationHelper {
         return title;
     }
 
-    private static NotificationCompat.MessagingStyle getMessagingStyle(Context context, Bundle bundle) {
+    private static NotificationCompat.MessagingStyle getMessagingStyle(Context context, Bundle bundle, PushNotificationTracer.Trace trace, PushNotificationDeadline deadline, boolean loadAvatars) {
         NotificationCompat.MessagingStyle messagingStyle;
         final String senderId = "me";
         final String serverUrl = bundle.getString("server_url");
@@ -436,7 +511,7 @@ public class CustomPushNotificationHelper {
 
         if (serverUrl != null && type != null && !type.equals(CustomPushNotificationHelper.PUSH_TYPE_SESSION)) {
             try {
-                Bitmap avatar = userAvatar(context, serverUrl, "me", urlOverride);
+                Bitmap avatar = userAvatar(context, serverUrl, "me", urlOverride, trace, deadline, loadAvatars);
                 if (avatar != null) {
                     sender.setIcon(IconCompat.createWithBitmap(avatar));
                 }
@@ -449,7 +524,7 @@ public class CustomPushNotificationHelper {
 
         String conversationTitle = getConversationTitle(bundle);
         setMessagingStyleConversationTitle(messagingStyle, conversationTitle, bundle);
-        addMessagingStyleMessages(context, messagingStyle, conversationTitle, bundle);
+        addMessagingStyleMessages(context, messagingStyle, conversationTitle, bundle, trace, deadline, loadAvatars);
 
         return messagingStyle;
     }
@@ -531,8 +606,8 @@ public class CustomPushNotificationHelper {
         notification.setDeleteIntent(deleteIntent);
     }
 
-    private static void setNotificationMessagingStyle(Context context, NotificationCompat.Builder notification, Bundle bundle) {
-        NotificationCompat.MessagingStyle messagingStyle = getMessagingStyle(context, bundle);
+    private static void setNotificationMessagingStyle(Context context, NotificationCompat.Builder notification, Bundle bundle, PushNotificationTracer.Trace trace, PushNotificationDeadline deadline, boolean loadAvatars) {
+        NotificationCompat.MessagingStyle messagingStyle = getMessagingStyle(context, bundle, trace, deadline, loadAvatars);
         notification.setStyle(messagingStyle);
     }
 
@@ -545,7 +620,7 @@ public class CustomPushNotificationHelper {
         }
     }
 
-    private static void setNotificationIcons(Context context, NotificationCompat.Builder notification, Bundle bundle) {
+    private static void setNotificationIcons(Context context, NotificationCompat.Builder notification, Bundle bundle, PushNotificationTracer.Trace trace, PushNotificationDeadline deadline, boolean loadAvatars) {
         String channelName = getConversationTitle(bundle);
         String senderName = bundle.getString("sender_name");
         String serverUrl = bundle.getString("server_url");
@@ -556,7 +631,7 @@ public class CustomPushNotificationHelper {
         if (serverUrl != null && channelName.equals(senderName)) {
             try {
                 String senderId = bundle.getString("sender_id");
-                Bitmap avatar = userAvatar(context, serverUrl, senderId, urlOverride);
+                Bitmap avatar = userAvatar(context, serverUrl, senderId, urlOverride, trace, deadline, loadAvatars);
                 if (avatar != null) {
                     notification.setLargeIcon(avatar);
                 }
@@ -566,6 +641,54 @@ public class CustomPushNotificationHelper {
         }
     }
 
+    public static void preloadUserAvatar(final Context context, @NonNull final String serverUrl, final String userId) {
+        try {
+            userAvatar(context, serverUrl, userId, null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Whether posting the notification with avatars loaded from the network would change it,
+     * that is when any of its avatars is not in the bitmap cache.
+     */
+    public static boolean hasUncachedAvatars(Context context, Bundle bundle) {
+        String serverUrl = bundle.getString("server_url");
+        String type = bundle.getString("type");
+        if (serverUrl == null || type == null || type.equals(CustomPushNotificationHelper.PUSH_TYPE_SESSION)) {
+            return false;
+        }
+
+        // Avatars from an override url are never cached
+        if (!TextUtils.isEmpty(bundle.getString("override_icon_url"))) {
+            return true;
+        }
+
+        String senderId = bundle.getString("sender_id");
+        return cachedUserAvatar(context, serverUrl, "me") == null
+                || (senderId != null && cachedUserAvatar(context, serverUrl, senderId) == null);
+    }
+
+    private static Bitmap userAvatar(final Context context, @NonNull final String serverUrl, final String userId, final String urlOverride, PushNotificationTracer.Trace trace, PushNotificationDeadline deadline, boolean loadAvatars) throws IOException {
+        if (!loadAvatars || (deadline != null && !deadline.allows("avatar", PushNotificationDeadline.AVATAR_RESERVE_MS))) {
+            // Avatars that are already cached do not need the network
+            return TextUtils.isEmpty(urlOverride) ? cachedUserAvatar(context, serverUrl, userId) : null;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        try {
+            return userAvatar(context, serverUrl, userId, urlOverride);
+        } finally {
+            long duration = SystemClock.elapsedRealtime() - start;
+            if (trace != null) {
+                trace.record("avatar", start, duration);
+            } else {
+                PushNotificationTracer.record("avatar", duration);
+            }
+        }
+    }
+
     private static Bitmap userAvatar(final Context context, @NonNull final String serverUrl, final String userId, final String urlOverride) throws IOException {
         try {
             Response response;
@@ -575,17 +698,7 @@ public class CustomPushNotificationHelper {
                 Log.i("ReactNative", String.format("Fetch override profile image %s", urlOverride));
                 response = client.newCall(request).execute();
             } else {
-                DatabaseHelper dbHelper = DatabaseHelper.Companion.getInstance();
-                if (dbHelper != null) {
-                    WMDatabase db = getDatabaseForServer(dbHelper, context, serverUrl);
-                    if (db != null) {
-                        lastUpdateAt = getLastPictureUpdate(db, userId);
-                        if (lastUpdateAt == null) {
-                            lastUpdateAt = 0.0;
-                        }
-                        db.close();
-                    }
-                }
+                lastUpdateAt = lastPictureUpdate(context, serverUrl, userId);
                 Bitmap cached = bitmapCache.bitmap(userId, lastUpdateAt, serverUrl);
                 if (cached != null) {
                     Bitmap bitmap = cached.copy(cached.getConfig(), false);
@@ -614,4 +727,33 @@ public class CustomPushNotificationHelper {
             return null;
         }
     }
+
+    private static Bitmap cachedUserAvatar(final Context context, @NonNull final String serverUrl, final String userId) {
+        if (TextUtils.isEmpty(userId)) {
+            return null;
+        }
+
+        try {
+            Bitmap cached = bitmapCache.bitmap(userId, lastPictureUpdate(context, serverUrl, userId), serverUrl);
+            if (cached != null) {
+                return getCircleBitmap(cached.copy(cached.getConfig(), false));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static Double lastPictureUpdate(final Context context, @NonNull final String serverUrl, final String userId) {
+        Double lastUpdateAt = null;
+        DatabaseHelper dbHelper = DatabaseHelper.Companion.getInstance();
+        if (dbHelper != null) {
+            WMDatabase db = getDatabaseForServer(dbHelper, context, serverUrl);
+            if (db != null) {
+                lastUpdateAt = getLastPictureUpdate(db, userId);
+                db.close();
+            }
+        }
+        return lastUpdateAt == null ? 0.0 : lastUpdateAt;
+    }
 }
@@ -14,24 +14,20 @@ import org.json.JSONObject
 
 typealias QueryArgs = Array<Any?>
 
+data class ServerRecord(val identifier: String, val url: String, val dbPath: String, val isActive: Boolean)
+
 class DatabaseHelper {
     var defaultDatabase: WMDatabase? = null
 
+    // Servers and device token of app.db, reloaded only when app.db changes
+    private var servers: List<ServerRecord>? = null
+    private var deviceToken: String? = null
+    private var registryVersion: String? = null
+
     val onlyServerUrl: String?
         get() {
-            try {
-                val query = "SELECT url FROM Servers WHERE last_active_at != 0 AND identifier != ''"
-                defaultDatabase!!.rawQuery(query).use { cursor ->
-                    if (cursor.count == 1) {
-                        cursor.moveToFirst()
-                        return cursor.getString(0)
-                    }
-                }
-            } catch (e: Exception) {
-                e.printStackTrace()
-                // let it fall to return null
-            }
-            return null
+            val active = getServers().filter { it.isActive && it.identifier.isNotEmpty() }
+            return if (active.size == 1) active[0].url else null
         }
 
     fun init(context: Context) {
@@ -40,6 +36,75 @@ class DatabaseHelper {
         }
     }
 
+    @Synchronized
+    fun getServers(forceReload: Boolean = false): List<ServerRecord> {
+        val version = queryRegistryVersion()
+        val cached = servers
+        if (cached != null && !forceReload && version != null && version == registryVersion) {
+            return cached
+        }
+
+        return loadRegistry(version)
+    }
+
+    @Synchronized
+    fun getCachedDeviceToken(): String? {
+        getServers()
+        return deviceToken
+    }
+
+    /**
+     * data_version changes when app.db is modified by another connection and total_changes()
+     * when it is modified by the connection shared with the app, neither of them reads a table.
+     */
+    private fun queryRegistryVersion(): String? {
+        return try {
+            val db = defaultDatabase ?: return null
+            val dataVersion = db.rawQuery("PRAGMA data_version").use { cursor ->
+                if (cursor.moveToFirst()) cursor.getLong(0) else null
+            }
+            val totalChanges = db.rawQuery("SELECT total_changes()").use { cursor ->
+                if (cursor.moveToFirst()) cursor.getLong(0) else null
+            }
+            if (dataVersion != null && totalChanges != null) "$dataVersion-$totalChanges" else null
+        } catch (e: Exception) {
+            e.printStackTrace()
+            null
+        }
+    }
+
+    private fun loadRegistry(version: String?): List<ServerRecord> {
+        val records = ArrayList<ServerRecord>()
+        var token: String? = null
+        try {
+            val db = defaultDatabase!!
+            db.rawQuery("SELECT identifier, url, db_path, last_active_at FROM Servers").use { cursor ->
+                while (cursor.moveToNext()) {
+                    records.add(ServerRecord(
+                            cursor.getString(0) ?: "",
+                            cursor.getString(1),
+                            cursor.getString(2),
+                            cursor.getDouble(3) != 0.0
+                    ))
+                }
+            }
+            db.rawQuery("SELECT value FROM Global WHERE id=?", arrayOf("deviceToken")).use { cursor ->
+                if (cursor.count == 1) {
+                    cursor.moveToFirst()
+                    token = cursor.getString(0)
+                }
+            }
+        } catch (e: Exception) {
+            e.printStackTrace()
+            return records
+        }
+
+        servers = records
+        deviceToken = token
+        registryVersion = version
+        return records
+    }
+
     private fun setDefaultDatabase(context: Context) {
         val databaseName = "app.db"
         val databasePath = Uri.fromFile(context.filesDir).toString() + "/" + databaseName
@@ -0,0 +1,22 @@
+package com.mattermost.helpers
+
+/**
+ * Runs an initialization until it succeeds once, concurrent callers wait for the running attempt
+ * and every call after the successful one returns right away without taking the lock.
+ */
+class InitializeOnce {
+    @Volatile
+    private var initialized = false
+
+    fun run(initialize: () -> Boolean) {
+        if (initialized) {
+            return
+        }
+
+        synchronized(this) {
+            if (!initialized) {
+                initialized = initialize()
+            }
+        }
+    }
+}
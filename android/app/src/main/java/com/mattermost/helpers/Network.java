@@ -26,6 +26,10 @@ public class Network {
         createClientOptions();
     }
 
+    public static boolean isInitialized() {
+        return clientModule != null;
+    }
+
     public static void get(String baseUrl, String endpoint, ReadableMap options, Promise promise) {
         createClientIfNeeded(baseUrl);
         clientModule.get(baseUrl, endpoint, options, promise);
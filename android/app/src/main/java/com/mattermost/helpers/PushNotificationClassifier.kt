@@ -0,0 +1,43 @@
+package com.mattermost.helpers
+
+import android.os.Bundle
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Classifies pushes from their payload, direct and group messages, mentions and replies
+ * to followed threads when CRT is enabled are processed with high priority.
+ */
+object PushNotificationClassifier {
+    private val mentionRegex = Regex("""\B@(([a-z\d-._]*[a-z\d_])[.-]*)""", setOf(RegexOption.IGNORE_CASE))
+
+    // The username of the current user of each server, remembered when fetching the posts of a push
+    private val usernames = ConcurrentHashMap<String, String>()
+
+    fun rememberCurrentUsername(serverUrl: String, username: String?) {
+        username?.let { usernames[serverUrl] = it }
+    }
+
+    fun priorityFor(initialData: Bundle): PushNotificationDispatcher.Priority {
+        if (initialData.getString("type") != CustomPushNotificationHelper.PUSH_TYPE_MESSAGE) {
+            return PushNotificationDispatcher.Priority.NORMAL
+        }
+
+        val channelType = initialData.getString("channel_type")
+        val isCRTEnabled = initialData.getString("is_crt_enabled") == "true"
+        val isThreadReply = isCRTEnabled && !initialData.getString("root_id").isNullOrEmpty()
+        if (channelType == "D" || channelType == "G" || isThreadReply || isMention(initialData)) {
+            return PushNotificationDispatcher.Priority.HIGH
+        }
+
+        return PushNotificationDispatcher.Priority.NORMAL
+    }
+
+    private fun isMention(initialData: Bundle): Boolean {
+        val message = initialData.getString("message") ?: return false
+        val username = initialData.getString("server_url")?.let { usernames[it] }
+        return mentionRegex.findAll(message).any {
+            val mention = it.groupValues[2]
+            PushNotificationDataRunnable.specialMentions.contains(mention) || mention.equals(username, ignoreCase = true)
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.mattermost.helpers
+
+import android.content.Context
+import android.os.Bundle
+import android.util.Log
+import com.mattermost.rnutils.helpers.NotificationHelper
+import com.mattermost.rnutils.helpers.PushNotificationTracer
+import kotlinx.coroutines.delay
+
+/**
+ * Batches the clear pushes received when many channels are read on another device.
+ *
+ * The first clear push waits for a short window, the clear pushes received during that window
+ * are added to its batch and all of them are applied with a single pass over the delivered notifications.
+ * A message notification for a channel or thread with a pending clear applies the batch before it is posted,
+ * so that the clear received before it never cancels it.
+ */
+object PushNotificationClearBatcher {
+    private const val WINDOW_MS = 150L
+    private val pending = ArrayList<Bundle>()
+
+    suspend fun clear(context: Context, notification: Bundle) {
+        val isLeader: Boolean
+        synchronized(pending) {
+            isLeader = pending.isEmpty()
+            pending.add(notification)
+        }
+
+        if (!isLeader) {
+            return
+        }
+
+        delay(WINDOW_MS)
+        apply(context)
+    }
+
+    // Thread clears carry the channel of the thread as well, the whole batch is applied either way
+    fun flushFor(context: Context, channelId: String) {
+        val hasPendingClear = synchronized(pending) {
+            pending.any { it.getString("channel_id") == channelId }
+        }
+        if (hasPendingClear) {
+            PushNotificationTracer.increment("clear_flushes")
+            apply(context)
+        }
+    }
+
+    private fun apply(context: Context) {
+        val batch: List<Bundle>
+        synchronized(pending) {
+            batch = ArrayList(pending)
+            pending.clear()
+        }
+        if (batch.isEmpty()) {
+            return
+        }
+
+        PushNotificationTracer.measure(null, "clear_batch") {
+            NotificationHelper.clearChannelOrThreadNotifications(context, batch)
+        }
+        PushNotificationTracer.increment("clears", batch.size.toLong())
+        Log.i("ReactNative", "Cleared notifications for ${batch.size} channels and threads")
+    }
+}
@@ -0,0 +1,89 @@
+package com.mattermost.helpers
+
+import android.os.Bundle
+import android.util.Log
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+
+/**
+ * Coalesces bursts of pushes for the same channel (or thread when CRT is enabled).
+ *
+ * A push with no fetch running for its key fetches right away, the pushes for the same key received
+ * while that fetch runs share a single fetch & save started once it finishes, as the posts are fetched
+ * using the since= query all the messages received in the meantime are loaded in a single pass.
+ *
+ * The shared fetches run in the scope of the coalescer, a push that is cancelled or fails its verification
+ * only stops waiting for the result while the pushes that joined it still get it.
+ */
+object PushNotificationCoalescer {
+    private class Fetches {
+        var running: CompletableDeferred<Bundle?>? = null
+        var waiting: CompletableDeferred<Bundle?>? = null
+    }
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private val fetches = HashMap<String, Fetches>()
+
+    fun keyFor(initialData: Bundle): String? {
+        val serverUrl = initialData.getString("server_url") ?: return null
+        val channelId = initialData.getString("channel_id") ?: return null
+        val rootId = initialData.getString("root_id")
+        val isCRTEnabled = initialData.getString("is_crt_enabled") == "true"
+
+        return if (isCRTEnabled && !rootId.isNullOrEmpty()) {
+            "$serverUrl-$channelId-$rootId"
+        } else {
+            "$serverUrl-$channelId"
+        }
+    }
+
+    suspend fun coalesce(key: String, block: suspend () -> Bundle?): Bundle? {
+        val result = synchronized(fetches) {
+            val state = fetches.getOrPut(key) { Fetches() }
+            state.waiting?.let {
+                Log.i("ReactNative", "Coalescing push notification for $key")
+                return@synchronized it
+            }
+
+            val fetch = CompletableDeferred<Bundle?>()
+            val previous = state.running
+            if (previous == null) {
+                state.running = fetch
+            } else {
+                state.waiting = fetch
+            }
+            scope.launch { run(key, state, fetch, previous, block) }
+            fetch
+        }
+
+        return result.await()
+    }
+
+    private suspend fun run(key: String, state: Fetches, fetch: CompletableDeferred<Bundle?>, previous: CompletableDeferred<Bundle?>?, block: suspend () -> Bundle?) {
+        try {
+            previous?.join()
+            synchronized(fetches) {
+                if (state.waiting === fetch) {
+                    state.waiting = null
+                    state.running = fetch
+                }
+            }
+            fetch.complete(block())
+        } catch (e: Exception) {
+            e.printStackTrace()
+        } finally {
+            fetch.complete(null)
+            synchronized(fetches) {
+                if (state.running === fetch) {
+                    state.running = null
+                }
+                if (state.running == null && state.waiting == null) {
+                    fetches.remove(key)
+                }
+            }
+        }
+    }
+}
@@ -7,7 +7,10 @@ import com.facebook.react.bridge.Arguments
 import com.facebook.react.bridge.ReadableArray
 import com.facebook.react.bridge.ReadableMap
 import com.mattermost.helpers.database_extension.getDatabaseForServer
+import com.mattermost.helpers.database_extension.isChannelCategorized
+import com.mattermost.helpers.database_extension.saveAllToDatabase
 import com.mattermost.helpers.database_extension.saveToDatabase
+import com.mattermost.helpers.database_extension.saveToDatabaseWithChanges
 import com.mattermost.helpers.push_notification.addToDefaultCategoryIfNeeded
 import com.mattermost.helpers.push_notification.fetchMyChannel
 import com.mattermost.helpers.push_notification.fetchMyTeamCategories
@@ -15,15 +18,24 @@ import com.mattermost.helpers.push_notification.fetchNeededUsers
 import com.mattermost.helpers.push_notification.fetchPosts
 import com.mattermost.helpers.push_notification.fetchTeamIfNeeded
 import com.mattermost.helpers.push_notification.fetchThread
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.sync.Mutex
+import com.mattermost.rnbeta.PushNotificationSyncWorker
+import com.mattermost.rnutils.helpers.PushNotificationTracer
+import com.nozbe.watermelondb.WMDatabase
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 
 class PushNotificationDataHelper(private val context: Context) {
-    suspend fun fetchAndStoreDataForPushNotification(initialData: Bundle, isReactInit: Boolean): Bundle? {
-        return withContext(Dispatchers.Default) {
-            PushNotificationDataRunnable.start(context, initialData, isReactInit)
+    suspend fun fetchAndStoreDataForPushNotification(initialData: Bundle, isReactInit: Boolean, trace: PushNotificationTracer.Trace? = null, deadline: PushNotificationDeadline? = null): Bundle? {
+        val key = PushNotificationCoalescer.keyFor(initialData) ?: return fetchAndStore(initialData, isReactInit, trace, deadline)
+        return PushNotificationCoalescer.coalesce(key) {
+            fetchAndStore(initialData, isReactInit, trace, deadline)
+        }
+    }
+
+    private suspend fun fetchAndStore(initialData: Bundle, isReactInit: Boolean, trace: PushNotificationTracer.Trace?, deadline: PushNotificationDeadline?): Bundle? {
+        return withContext(PushNotificationDispatcher.network) {
+            PushNotificationDataRunnable.start(context, initialData, isReactInit, trace, deadline)
         }
     }
 }
@@ -32,19 +44,20 @@ class PushNotificationDataRunnable {
     companion object {
         internal val specialMentions = listOf("all", "here", "channel")
         private val dbHelper = DatabaseHelper.instance!!
-        private val mutex = Mutex()
 
-        suspend fun start(context: Context, initialData: Bundle, isReactInit: Boolean): Bundle? {
-            mutex.withLock {
+        private val locks = PushNotificationLocks()
+
+        suspend fun start(context: Context, initialData: Bundle, isReactInit: Boolean, trace: PushNotificationTracer.Trace? = null, deadline: PushNotificationDeadline? = null): Bundle? {
+            val serverUrl: String = initialData.getString("server_url") ?: return null
+            val channelId = initialData.getString("channel_id")
+            return locks.withPushLock(serverUrl, channelId) {
                 // for more info see: https://blog.danlew.net/2020/01/28/coroutines-and-java-synchronization-dont-mix/
-                val serverUrl: String = initialData.getString("server_url") ?: return null
                 val db = dbHelper.getDatabaseForServer(context, serverUrl)
                 var result: Bundle? = null
 
                 try {
                     if (db != null) {
                         val teamId = initialData.getString("team_id")
-                        val channelId = initialData.getString("channel_id")
                         val postId = initialData.getString("post_id")
                         val rootId = initialData.getString("root_id")
                         val isCRTEnabled = initialData.getString("is_crt_enabled") == "true"
@@ -53,56 +66,116 @@ class PushNotificationDataRunnable {
                         Log.i("ReactNative", "Start fetching notification data in server=$serverUrl for channel=$channelId and ack=$ackId")
 
                         val receivingThreads = isCRTEnabled && !rootId.isNullOrEmpty()
-                        val notificationData = Arguments.createMap()
 
-                        if (!teamId.isNullOrEmpty()) {
-                            val res = fetchTeamIfNeeded(db, serverUrl, teamId)
-                            res.first?.let { notificationData.putMap("team", it) }
-                            res.second?.let { notificationData.putMap("myTeam", it) }
-                        }
+                        val journal = PushNotificationJournal.open(context, serverUrl, initialData)
+                        val store = PushNotificationStore.getInstance(context)
+                        val notificationData = journal.data
 
-                        if (channelId != null && postId != null) {
-                            val channelRes = fetchMyChannel(db, serverUrl, channelId, isCRTEnabled)
-                            channelRes.first?.let { notificationData.putMap("channel", it) }
-                            channelRes.second?.let { notificationData.putMap("myChannel", it) }
-                            val loadedProfiles = channelRes.third
-
-                            // Fetch categories if needed
-                            if (!teamId.isNullOrEmpty() && notificationData.getMap("myTeam") != null) {
-                                // should load all categories
-                                val res = fetchMyTeamCategories(db, serverUrl, teamId)
-                                res?.let { notificationData.putMap("categories", it) }
-                            } else if (notificationData.getMap("channel") != null) {
-                                // check if the channel is in the category for the team
-                                val res = addToDefaultCategoryIfNeeded(db, notificationData.getMap("channel")!!)
-                                res?.let { notificationData.putArray("categoryChannels", it) }
-                            }
+                        // Independent fetches run concurrently and each stage only waits for what it depends on,
+                        // the categories need the team and the channel, the users need the channel profiles and the posts
+                        val fanOut = coroutineScope {
+                            val knownProfiles = journal.loadedProfiles
+                            val requests = PushNotificationFanOut.start(this, teamId, channelId, postId, rootId, isCRTEnabled, journal::isDone,
+                                    object : PushNotificationFetches<Pair<ReadableMap?, ReadableMap?>, Triple<ReadableMap?, ReadableMap?, ReadableArray?>, ReadableMap?, ReadableMap?> {
+                                        override suspend fun team(teamId: String) =
+                                                PushNotificationTracer.measure(trace, "fetch_team") { fetchTeamIfNeeded(db, store, serverUrl, teamId) }
 
-                            val postData = fetchPosts(db, serverUrl, channelId, isCRTEnabled, rootId, loadedProfiles)
-                            postData?.getMap("posts")?.let { notificationData.putMap("posts", it) }
+                                        override suspend fun channel(channelId: String) =
+                                                PushNotificationTracer.measure(trace, "fetch_channel") { fetchMyChannel(db, serverUrl, channelId, isCRTEnabled) }
 
-                            var notificationThread: ReadableMap? = null
-                            if (isCRTEnabled && !rootId.isNullOrEmpty()) {
-                                notificationThread = fetchThread(db, serverUrl, rootId, teamId)
+                                        override suspend fun posts(channelId: String) =
+                                                PushNotificationTracer.measure(trace, "fetch_posts") { fetchPosts(db, serverUrl, channelId, isCRTEnabled, rootId, knownProfiles) }
+
+                                        override suspend fun thread(rootId: String) =
+                                                PushNotificationTracer.measure(trace, "fetch_thread") { fetchThread(db, serverUrl, rootId, teamId) }
+                                    }
+                            )
+                            val teamRequest = requests.team
+                            val channelRequest = requests.channel
+                            val postsRequest = requests.posts
+                            val threadRequest = requests.thread
+
+                            teamRequest?.let { request ->
+                                val res = request.await()
+                                res.first?.let { notificationData.putMap("team", it) }
+                                res.second?.let { notificationData.putMap("myTeam", it) }
+                                journal.record("team")
                             }
 
-                            getThreadList(notificationThread, postData?.getArray("threads"))?.let {
-                                val threadsArray = Arguments.createArray()
-                                for (item in it) {
-                                    threadsArray.pushMap(item)
+                            if (channelId != null && postId != null) {
+                                var loadedProfiles = journal.loadedProfiles
+                                channelRequest?.let { request ->
+                                    val channelRes = request.await()
+                                    channelRes.first?.let { notificationData.putMap("channel", it) }
+                                    channelRes.second?.let { notificationData.putMap("myChannel", it) }
+                                    loadedProfiles = channelRes.third
+                                    journal.loadedProfiles = loadedProfiles
+                                    journal.record("channel")
                                 }
-                                notificationData.putArray("threads", threadsArray)
-                            }
 
-                            val userList = fetchNeededUsers(serverUrl, loadedProfiles, postData)
-                            notificationData.putArray("users", ReadableArrayUtils.toWritableArray(userList.toArray()))
+                                if (!journal.isDone("categories")) {
+                                    // Fetch categories if needed, when running out of time the channel is added to its default category instead,
+                                    // nothing is needed when the channel is already in one of the categories of its team
+                                    val needsCategories = !teamId.isNullOrEmpty() && notificationData.getMap("myTeam") != null && !isChannelCategorized(db, teamId, channelId)
+                                    if (needsCategories && deadline?.allows("categories", PushNotificationDeadline.OPTIONAL_STAGE_RESERVE_MS) != false) {
+                                        // should load all categories
+                                        val res = PushNotificationTracer.measure(trace, "fetch_categories") { fetchMyTeamCategories(db, store, serverUrl, teamId!!) }
+                                        res?.let { notificationData.putMap("categories", it) }
+                                    } else if (notificationData.getMap("channel") != null) {
+                                        // check if the channel is in the category for the team
+                                        val res = addToDefaultCategoryIfNeeded(db, notificationData.getMap("channel")!!)
+                                        res?.let { notificationData.putArray("categoryChannels", it) }
+                                    }
+                                    journal.record("categories")
+                                }
+
+                                var postData = journal.postData
+                                postsRequest?.let { request ->
+                                    postData = request.await()?.let { excludeLoadedUsers(it, loadedProfiles) }
+                                    postData?.getMap("posts")?.let { notificationData.putMap("posts", it) }
+                                    journal.postData = postData?.let { withoutPosts(it) }
+                                    journal.record("posts")
+                                }
+
+                                if (!journal.isDone("threads")) {
+                                    val notificationThread = threadRequest?.await()
+                                    getThreadList(notificationThread, postData?.getArray("threads"))?.let {
+                                        val threadsArray = Arguments.createArray()
+                                        for (item in it) {
+                                            threadsArray.pushMap(item)
+                                        }
+                                        notificationData.putArray("threads", threadsArray)
+                                    }
+                                    journal.record("threads")
+                                }
+
+                                if (!journal.isDone("users")) {
+                                    val lookupUsers = deadline?.allows("users", PushNotificationDeadline.OPTIONAL_STAGE_RESERVE_MS) != false
+                                    val userList = PushNotificationTracer.measure(trace, "fetch_users") { fetchNeededUsers(serverUrl, loadedProfiles, postData, lookupUsers) }
+                                    notificationData.putArray("users", ReadableArrayUtils.toWritableArray(userList.toArray()))
+                                    journal.record("users")
+                                }
+                            }
+                            requests
                         }
 
-                        result = Arguments.toBundle(notificationData)
+                        if (fanOut.count > 1) {
+                            PushNotificationTracer.record("fetch_fanout", fanOut.wallMs)
+                            PushNotificationTracer.record("fetch_sequential", fanOut.sumMs)
+                            Log.i("ReactNative", "Fetched ${fanOut.count} requests concurrently in ${fanOut.wallMs}ms, slowest ${fanOut.slowestMs}ms, sequential ${fanOut.sumMs}ms")
+                        }
 
-                        if (!isReactInit) {
-                            dbHelper.saveToDatabase(db, notificationData, teamId, channelId, receivingThreads)
+                        // The data is always saved natively, when the app is running it is saved right away
+                        // and the app is only told which records changed so that it reloads them
+                        result = PushNotificationTracer.measure(trace, "save") {
+                            if (isReactInit) {
+                                saveNow(db, serverUrl, notificationData, teamId, channelId, receivingThreads)
+                            } else {
+                                queueSave(context, db, serverUrl, notificationData, teamId, channelId, receivingThreads)
+                                Bundle()
+                            }
                         }
+                        journal.finish()
 
                         Log.i("ReactNative", "Done processing push notification=$serverUrl for channel=$channelId and ack=$ackId")
                     }
@@ -113,10 +186,87 @@ class PushNotificationDataRunnable {
                     Log.i("ReactNative", "DONE fetching notification data")
                 }
 
-                return result
+                result
             }
         }
 
+        suspend fun saveAll(context: Context, serverUrl: String, items: List<PendingSync>) {
+            locks.writeLock(serverUrl).withLock {
+                withContext(PushNotificationDispatcher.database) {
+                    // The server may have been removed since the data was fetched
+                    val db = dbHelper.getDatabaseForServer(context, serverUrl) ?: return@withContext
+                    try {
+                        dbHelper.saveAllToDatabase(db, items)
+                    } finally {
+                        db.close()
+                    }
+                }
+            }
+        }
+
+        private suspend fun saveNow(db: WMDatabase, serverUrl: String, notificationData: ReadableMap, teamId: String?, channelId: String?, receivingThreads: Boolean): Bundle {
+            val changes = locks.writeLock(serverUrl).withLock {
+                withContext(PushNotificationDispatcher.database) {
+                    dbHelper.saveToDatabaseWithChanges(db, notificationData, teamId, channelId, receivingThreads)
+                }
+            }
+
+            val result = Bundle()
+            for ((table, ids) in changes) {
+                result.putStringArray(table, ids.toTypedArray())
+            }
+            return result
+        }
+
+        // The data is persisted and saved by PushNotificationSyncWorker so that it is not lost if the process
+        // is killed, the worker saves all the pending data of a server in a single transaction
+        private suspend fun queueSave(context: Context, db: WMDatabase, serverUrl: String, notificationData: ReadableMap, teamId: String?, channelId: String?, receivingThreads: Boolean) {
+            try {
+                val data = ReadableMapUtils.toJSONObject(notificationData).toString()
+                withContext(PushNotificationDispatcher.database) {
+                    PushNotificationStore.getInstance(context).insertPendingSync(serverUrl, teamId, channelId, receivingThreads, data)
+                }
+                PushNotificationSyncWorker.enqueue(context)
+            } catch (e: Exception) {
+                e.printStackTrace()
+                locks.writeLock(serverUrl).withLock {
+                    withContext(PushNotificationDispatcher.database) {
+                        dbHelper.saveToDatabase(db, notificationData, teamId, channelId, receivingThreads)
+                    }
+                }
+            }
+        }
+
+        // The posts are fetched concurrently with the channel, the profiles loaded with the channel are not fetched again
+        private fun excludeLoadedUsers(postData: ReadableMap, loadedProfiles: ReadableArray?): ReadableMap {
+            val userIds = postData.getArray("userIdsToLoad") ?: return postData
+            loadedProfiles ?: return postData
+
+            val loadedIds = HashSet<String>()
+            for (i in 0 until loadedProfiles.size()) {
+                loadedProfiles.getMap(i).getString("id")?.let { loadedIds.add(it) }
+            }
+            val remaining = ArrayList<String>()
+            for (i in 0 until userIds.size()) {
+                userIds.getString(i)?.let { if (!loadedIds.contains(it)) remaining.add(it) }
+            }
+            if (remaining.size == userIds.size()) {
+                return postData
+            }
+
+            val result = Arguments.createMap()
+            result.merge(postData)
+            result.putArray("userIdsToLoad", ReadableArrayUtils.toWritableArray(remaining.toTypedArray()))
+            return result
+        }
+
+        // The posts are already part of the journaled notification data
+        private fun withoutPosts(postData: ReadableMap): ReadableMap {
+            val map = ReadableMapUtils.toMap(postData)
+            map.remove("posts")
+            return ReadableMapUtils.toWritableMap(map)
+        }
+
         private fun getThreadList(notificationThread: ReadableMap?, threads: ReadableArray?): ArrayList<ReadableMap>? {
             threads?.let {
                 val threadsArray = ArrayList<ReadableMap>()
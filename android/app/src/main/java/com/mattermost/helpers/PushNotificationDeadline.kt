@@ -0,0 +1,48 @@
+package com.mattermost.helpers
+
+import android.os.SystemClock
+import android.util.Log
+import com.mattermost.rnutils.helpers.PushNotificationTracer
+import java.util.Collections
+
+/**
+ * Time budget for processing a push notification, measured from the moment the push is received.
+ *
+ * A high priority FCM message only gets a few seconds of execution, optional stages ask the deadline
+ * before running and are skipped when the remaining budget is low, skipped stages are recorded so that
+ * they can be completed later by PushNotificationDataWorker.
+ */
+class PushNotificationDeadline(private val budgetMs: Long = DEFAULT_BUDGET_MS) {
+    private val start = SystemClock.elapsedRealtime()
+    private val skipped = Collections.synchronizedSet(LinkedHashSet<String>())
+
+    fun remaining(): Long = budgetMs - (SystemClock.elapsedRealtime() - start)
+
+    fun allows(stage: String, reserveMs: Long): Boolean {
+        val remaining = remaining()
+        if (remaining > reserveMs) {
+            return true
+        }
+
+        skipped.add(stage)
+        PushNotificationTracer.increment("skipped.$stage")
+        Log.i("ReactNative", "Skipping $stage for push notification, ${remaining}ms left")
+        return false
+    }
+
+    fun skippedStages(): Set<String> {
+        synchronized(skipped) {
+            return LinkedHashSet(skipped)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_BUDGET_MS = 8000L
+
+        // Remaining time needed to start an optional data stage (categories, users)
+        const val OPTIONAL_STAGE_RESERVE_MS = 3000L
+
+        // Remaining time needed to fetch an avatar
+        const val AVATAR_RESERVE_MS = 1500L
+    }
+}
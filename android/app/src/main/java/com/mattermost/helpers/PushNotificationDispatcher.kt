@@ -0,0 +1,190 @@
+package com.mattermost.helpers
+
+import android.os.SystemClock
+import android.util.Log
+import com.mattermost.rnutils.helpers.PushNotificationTracer
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineExceptionHandler
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+
+/**
+ * Process wide dispatcher for push notifications.
+ *
+ * Pushes are queued in bounded priority lanes and processed by a fixed number of workers,
+ * network and database work run on their own lanes with limited parallelism so that a
+ * burst of pushes does not flood the CPU bound default dispatcher.
+ *
+ * High priority pushes are always taken before normal ones and a few workers only process
+ * high priority pushes, so that a DM or a mention does not wait behind a busy channel.
+ *
+ * A push with the same key as a queued one replaces it (merge). When the queues overflow,
+ * the oldest queued push of the lowest priority makes room for an incoming push of a higher
+ * priority, otherwise the incoming push is the one left out. The overflow block of the push
+ * left out runs instead, so that it can still be posted in a degraded way.
+ */
+object PushNotificationDispatcher {
+    enum class Priority { HIGH, NORMAL }
+
+    private const val MAX_QUEUE_SIZE = 50
+    private const val MAX_CONCURRENT_NOTIFICATIONS = 12
+    private const val HIGH_PRIORITY_WORKERS = 2
+    private const val MAX_NETWORK_PARALLELISM = 6
+    private const val MAX_DATABASE_PARALLELISM = 2
+
+    @OptIn(ExperimentalCoroutinesApi::class)
+    val network: CoroutineDispatcher = Dispatchers.IO.limitedParallelism(MAX_NETWORK_PARALLELISM)
+
+    @OptIn(ExperimentalCoroutinesApi::class)
+    val database: CoroutineDispatcher = Dispatchers.IO.limitedParallelism(MAX_DATABASE_PARALLELISM)
+
+    private val exceptionHandler = CoroutineExceptionHandler { _, e -> e.printStackTrace() }
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default + exceptionHandler)
+    private val lanes = Priority.values().associateWith { Lane() }
+    private val signal = Channel<Unit>(Channel.UNLIMITED)
+    private val highPrioritySignal = Channel<Unit>(Channel.UNLIMITED)
+    private var workersStarted = false
+
+    private var maxQueueDepth = 0
+    private var dropped = 0L
+    private var merged = 0L
+
+    private class Task(val key: String, var block: suspend () -> Unit, var onOverflow: (suspend () -> Unit)?, val enqueuedAt: Long)
+
+    private class Lane {
+        val queue = LinkedHashMap<String, Task>()
+        var processed = 0L
+        var totalWaitMs = 0L
+        var maxWaitMs = 0L
+    }
+
+    init {
+        PushNotificationTracer.registerMetrics("dispatcher") { getMetrics() }
+    }
+
+    fun dispatch(key: String, priority: Priority = Priority.NORMAL, onOverflow: (suspend () -> Unit)? = null, block: suspend () -> Unit) {
+        var overflowed: Task? = null
+        synchronized(lanes) {
+            val existing = lanes.values.firstNotNullOfOrNull { it.queue[key] }
+            if (existing != null) {
+                existing.block = block
+                existing.onOverflow = onOverflow
+                merged++
+                Log.i("ReactNative", "Push notification $key merged with the queued one")
+                return
+            }
+
+            val task = Task(key, block, onOverflow, SystemClock.elapsedRealtime())
+            if (queueSize() >= MAX_QUEUE_SIZE) {
+                dropped++
+                val lowestQueued = Priority.values().last { lanes.getValue(it).queue.isNotEmpty() }
+                if (lowestQueued > priority) {
+                    val lane = lanes.getValue(lowestQueued)
+                    val oldest = lane.queue.keys.first()
+                    overflowed = lane.queue.remove(oldest)
+                    Log.w("ReactNative", "Push notification queue is full, degrading $lowestQueued push $oldest")
+                } else {
+                    overflowed = task
+                    Log.w("ReactNative", "Push notification queue is full, degrading $priority push $key")
+                }
+            }
+
+            if (overflowed !== task) {
+                lanes.getValue(priority).queue[key] = task
+                maxQueueDepth = maxQueueDepth.coerceAtLeast(queueSize())
+                startWorkersIfNeeded()
+            }
+        }
+
+        overflowed?.let { task ->
+            task.onOverflow?.let { onOverflowed -> scope.launch { onOverflowed() } }
+            if (task.key == key) {
+                return
+            }
+        }
+
+        signal.trySend(Unit)
+        if (priority == Priority.HIGH) {
+            highPrioritySignal.trySend(Unit)
+        }
+    }
+
+    fun getMetrics(): Map<String, Long> {
+        synchronized(lanes) {
+            val processed = lanes.values.sumOf { it.processed }
+            val totalWaitMs = lanes.values.sumOf { it.totalWaitMs }
+            val metrics = LinkedHashMap<String, Long>()
+            metrics["queueDepth"] = queueSize().toLong()
+            metrics["maxQueueDepth"] = maxQueueDepth.toLong()
+            metrics["processed"] = processed
+            metrics["dropped"] = dropped
+            metrics["merged"] = merged
+            metrics["averageWaitMs"] = if (processed > 0) totalWaitMs / processed else 0L
+            metrics["maxWaitMs"] = lanes.values.maxOf { it.maxWaitMs }
+            for ((priority, lane) in lanes) {
+                val name = priority.name.lowercase()
+                metrics["$name.queueDepth"] = lane.queue.size.toLong()
+                metrics["$name.processed"] = lane.processed
+                metrics["$name.averageWaitMs"] = if (lane.processed > 0) lane.totalWaitMs / lane.processed else 0L
+                metrics["$name.maxWaitMs"] = lane.maxWaitMs
+            }
+            return metrics
+        }
+    }
+
+    private fun queueSize() = lanes.values.sumOf { it.queue.size }
+
+    private fun startWorkersIfNeeded() {
+        if (workersStarted) {
+            return
+        }
+
+        workersStarted = true
+        repeat(MAX_CONCURRENT_NOTIFICATIONS - HIGH_PRIORITY_WORKERS) {
+            launchWorker(signal, Priority.NORMAL)
+        }
+        repeat(HIGH_PRIORITY_WORKERS) {
+            launchWorker(highPrioritySignal, Priority.HIGH)
+        }
+    }
+
+    // Every push signals the shared workers, high priority pushes also signal the reserved ones,
+    // a worker that is signalled after the push was taken by another worker finds nothing to poll
+    private fun launchWorker(workerSignal: Channel<Unit>, lowestPriority: Priority) {
+        scope.launch {
+            for (ignored in workerSignal) {
+                val task = poll(lowestPriority) ?: continue
+                try {
+                    task.block()
+                } catch (e: Exception) {
+                    e.printStackTrace()
+                }
+            }
+        }
+    }
+
+    private fun poll(lowestPriority: Priority): Task? {
+        synchronized(lanes) {
+            for (priority in Priority.values()) {
+                if (priority > lowestPriority) {
+                    break
+                }
+
+                val lane = lanes.getValue(priority)
+                val key = lane.queue.keys.firstOrNull() ?: continue
+                val task = lane.queue.remove(key) ?: continue
+                val waitMs = SystemClock.elapsedRealtime() - task.enqueuedAt
+                lane.processed++
+                lane.totalWaitMs += waitMs
+                lane.maxWaitMs = lane.maxWaitMs.coerceAtLeast(waitMs)
+                Log.i("ReactNative", "Processing $priority push notification ${task.key} after waiting ${waitMs}ms, queue depth=${queueSize()}")
+                return task
+            }
+            return null
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.mattermost.helpers
+
+import android.content.Context
+import android.os.Bundle
+import android.util.Log
+import com.facebook.react.bridge.Arguments
+import com.facebook.react.bridge.ReadableArray
+import com.facebook.react.bridge.ReadableMap
+import com.facebook.react.bridge.ReadableType
+import com.facebook.react.bridge.WritableMap
+import com.wix.reactnativenotifications.core.AppLifecycleFacadeHolder
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlinx.coroutines.withContext
+import org.json.JSONArray
+import org.json.JSONObject
+
+/**
+ * Write-ahead journal of the data fetched for a push notification.
+ *
+ * Every completed fetch stage is recorded together with the data that stage added, when the process
+ * is killed before the data is handed over to PushNotificationSyncWorker the push is resumed on the
+ * next push or app start from the last recorded stage instead of fetching everything again, with the
+ * data of the recorded stages merged back together.
+ */
+class PushNotificationJournal private constructor(
+        private val store: PushNotificationStore,
+        private val key: String,
+        private val serverUrl: String,
+        private val payload: JSONObject,
+        private val stages: MutableSet<String>,
+        val data: WritableMap,
+        var loadedProfiles: ReadableArray?,
+        var postData: ReadableMap?
+) {
+    // What was already written by earlier stages, only what a stage adds on top of it is recorded
+    private val journaledKeys = HashSet<String>().apply { addAll(data.toHashMap().keys) }
+    private var journaledProfiles = loadedProfiles
+    private var journaledPostData = postData
+    private var sessionJournaled = false
+
+    fun isDone(stage: String) = stages.contains(stage)
+
+    suspend fun record(stage: String) {
+        stages.add(stage)
+        try {
+            val added = JSONObject()
+            val iterator = data.keySetIterator()
+            while (iterator.hasNextKey()) {
+                val name = iterator.nextKey()
+                if (journaledKeys.add(name)) {
+                    when (data.getType(name)) {
+                        ReadableType.Map -> added.put(name, ReadableMapUtils.toJSONObject(data.getMap(name)!!))
+                        ReadableType.Array -> added.put(name, ReadableArrayUtils.toJSONArray(data.getArray(name)!!))
+                        else -> {}
+                    }
+                }
+            }
+
+            val delta = JSONObject()
+            delta.put("data", added)
+            loadedProfiles?.takeIf { it !== journaledProfiles }?.let { delta.put("loadedProfiles", ReadableArrayUtils.toJSONArray(it)) }
+            postData?.takeIf { it !== journaledPostData }?.let { delta.put("postData", ReadableMapUtils.toJSONObject(it)) }
+            journaledProfiles = loadedProfiles
+            journaledPostData = postData
+
+            val session = if (sessionJournaled) null else SESSION
+            withContext(PushNotificationDispatcher.database) {
+                store.saveJournalStage(key, serverUrl, payload.toString(), session, stage, delta.toString())
+            }
+            sessionJournaled = true
+        } catch (e: Exception) {
+            e.printStackTrace()
+        }
+    }
+
+    suspend fun finish() {
+        try {
+            withContext(PushNotificationDispatcher.database) {
+                store.deleteJournal(key)
+            }
+        } catch (e: Exception) {
+            e.printStackTrace()
+        }
+    }
+
+    companion object {
+        // Identifies the journal entries written by this process, entries of other sessions were interrupted
+        private val SESSION = RandomId.generate()
+        private val MAX_AGE_MS = TimeUnit.HOURS.toMillis(12)
+        private val CACHED_RESPONSE_MAX_AGE_MS = TimeUnit.DAYS.toMillis(7)
+        private val resumed = AtomicBoolean(false)
+
+        fun keyFor(serverUrl: String, initialData: Bundle): String {
+            return initialData.getString("ack_id")
+                    ?: "$serverUrl-${initialData.getString("channel_id")}-${initialData.getString("post_id")}"
+        }
+
+        suspend fun open(context: Context, serverUrl: String, initialData: Bundle): PushNotificationJournal {
+            val store = PushNotificationStore.getInstance(context)
+            val key = keyFor(serverUrl, initialData)
+            val payload = JSONObject()
+            for (name in initialData.keySet()) {
+                initialData.getString(name)?.let { payload.put(name, it) }
+            }
+
+            val journaled = try {
+                withContext(PushNotificationDispatcher.database) { store.getJournalStages(key) }
+            } catch (e: Exception) {
+                e.printStackTrace()
+                emptyList()
+            }
+
+            if (journaled.isNotEmpty()) {
+                try {
+                    val stages = LinkedHashSet<String>()
+                    val data = JSONObject()
+                    var loadedProfiles: JSONArray? = null
+                    var postData: JSONObject? = null
+                    for (entry in journaled) {
+                        val delta = JSONObject(entry.data)
+                        val added = delta.getJSONObject("data")
+                        for (name in added.keys()) {
+                            data.put(name, added.get(name))
+                        }
+                        delta.optJSONArray("loadedProfiles")?.let { loadedProfiles = it }
+                        delta.optJSONObject("postData")?.let { postData = it }
+                        stages.add(entry.stage)
+                    }
+                    Log.i("ReactNative", "Resuming push notification $key after stages $stages")
+                    return PushNotificationJournal(
+                            store, key, serverUrl, payload, stages,
+                            ReadableMapUtils.toWritableMap(ReadableMapUtils.toMap(data)),
+                            loadedProfiles?.let { ReadableArrayUtils.toWritableArray(ReadableArrayUtils.toArray(it)) },
+                            postData?.let { ReadableMapUtils.toWritableMap(ReadableMapUtils.toMap(it)) }
+                    )
+                } catch (e: Exception) {
+                    e.printStackTrace()
+                }
+            }
+
+            return PushNotificationJournal(store, key, serverUrl, payload, LinkedHashSet(), Arguments.createMap(), null, null)
+        }
+
+        /**
+         * Resumes the pushes interrupted in a previous process, only the first call of the process has any effect.
+         */
+        fun resumeInterrupted(context: Context) {
+            if (!resumed.compareAndSet(false, true)) {
+                return
+            }
+
+            val appContext = context.applicationContext
+            PushNotificationDispatcher.dispatch("resume-interrupted-pushes") {
+                val store = PushNotificationStore.getInstance(appContext)
+                val payloads = withContext(PushNotificationDispatcher.database) {
+                    store.deleteExpiredJournals(System.currentTimeMillis() - MAX_AGE_MS)
+                    store.deleteExpiredCachedResponses(System.currentTimeMillis() - CACHED_RESPONSE_MAX_AGE_MS)
+                    store.getInterruptedJournalPayloads(SESSION)
+                }
+                if (payloads.isEmpty() || AppLifecycleFacadeHolder.get().isReactInitialized()) {
+                    return@dispatch
+                }
+
+                PushNotificationRuntime.ensureInitialized(appContext)
+
+                Log.i("ReactNative", "Resuming ${payloads.size} interrupted push notifications")
+                for (payload in payloads) {
+                    // Data saved natively behind the running app would not be seen by it, the app syncs on its own
+                    if (AppLifecycleFacadeHolder.get().isReactInitialized()) {
+                        Log.i("ReactNative", "Stopped resuming interrupted push notifications, the app is running")
+                        break
+                    }
+                    val bundle = Bundle()
+                    val json = JSONObject(payload)
+                    for (name in json.keys()) {
+                        bundle.putString(name, json.getString(name))
+                    }
+                    withContext(PushNotificationDispatcher.network) {
+                        PushNotificationDataRunnable.start(appContext, bundle, false)
+                    }
+                }
+            }
+        }
+    }
+}
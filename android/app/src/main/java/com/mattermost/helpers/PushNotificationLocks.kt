@@ -0,0 +1,47 @@
+package com.mattermost.helpers
+
+import java.util.concurrent.ConcurrentHashMap
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * Locks taken while handling pushes, pushes are serialized per server and channel so that pushes
+ * for different servers and channels fetch and save their data in parallel, writes to the same
+ * server database are always serialized.
+ *
+ * The lock of a channel only exists while a push holds it or waits for it, the write locks are kept
+ * for the life of the process as there is one per server.
+ */
+class PushNotificationLocks {
+    private class PushLock {
+        val mutex = Mutex()
+        var users = 0
+    }
+
+    private val pushLocks = HashMap<String, PushLock>()
+    private val writeLocks = ConcurrentHashMap<String, Mutex>()
+
+    val pushLockCount get() = synchronized(pushLocks) { pushLocks.size }
+
+    suspend fun <T> withPushLock(serverUrl: String, channelId: String?, block: suspend () -> T): T {
+        val key = if (channelId != null) "$serverUrl-$channelId" else serverUrl
+        val lock = synchronized(pushLocks) {
+            pushLocks.getOrPut(key) { PushLock() }.also { it.users++ }
+        }
+
+        try {
+            return lock.mutex.withLock { block() }
+        } finally {
+            synchronized(pushLocks) {
+                lock.users--
+                if (lock.users == 0) {
+                    pushLocks.remove(key)
+                }
+            }
+        }
+    }
+
+    fun writeLock(serverUrl: String): Mutex {
+        return writeLocks.getOrPut(serverUrl) { Mutex() }
+    }
+}
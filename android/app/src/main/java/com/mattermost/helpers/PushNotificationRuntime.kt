@@ -0,0 +1,54 @@
+package com.mattermost.helpers
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.NetworkCapabilities
+import android.os.SystemClock
+import android.util.Log
+import com.mattermost.rnutils.helpers.NotificationHelper
+import com.mattermost.rnutils.helpers.PushNotificationTracer
+
+/**
+ * Process wide state needed to handle push notifications, initialized once for the life of the process
+ * by the first push, worker or app start that needs it.
+ *
+ * Initializing the network client on every push would drop the HTTP clients already created for each server.
+ */
+object PushNotificationRuntime {
+    private val once = InitializeOnce()
+
+    /**
+     * The first call records the setup cost as the "runtime_init" stage, the constructor of every push
+     * records what it spent here as "push_init", both are reported by RNUtils.getPushNotificationMetrics().
+     */
+    fun ensureInitialized(context: Context) {
+        once.run {
+            val start = SystemClock.elapsedRealtime()
+            val appContext = context.applicationContext
+            val initialized = try {
+                DatabaseHelper.instance?.init(appContext)
+                if (!Network.isInitialized()) {
+                    Network.init(appContext)
+                }
+                NotificationHelper.cleanNotificationPreferencesIfNeeded(appContext)
+                true
+            } catch (e: Exception) {
+                e.printStackTrace()
+                false
+            }
+
+            val duration = SystemClock.elapsedRealtime() - start
+            PushNotificationTracer.record("runtime_init", duration)
+            Log.i("ReactNative", "Push notification runtime initialized in ${duration}ms")
+            initialized
+        }
+    }
+
+    fun isOnline(context: Context): Boolean {
+        val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as? ConnectivityManager ?: return true
+        val capabilities = connectivityManager.getNetworkCapabilities(connectivityManager.activeNetwork) ?: return false
+        // Not requiring a validated network, self-hosted servers are often reached from networks that Android
+        // cannot validate, a network that does not reach the server fails the fetches instead
+        return capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+    }
+}
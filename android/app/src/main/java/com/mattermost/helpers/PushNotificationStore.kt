@@ -0,0 +1,470 @@
+package com.mattermost.helpers
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.DatabaseUtils
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+
+data class PendingAck(
+        val ackId: String,
+        val serverUrl: String,
+        val postId: String?,
+        val type: String?,
+        val receivedAt: Long,
+        val attempts: Int
+)
+
+data class PendingSync(
+        val id: Long,
+        val serverUrl: String,
+        val teamId: String?,
+        val channelId: String?,
+        val receivingThreads: Boolean,
+        val data: String
+)
+
+data class DeferredSync(
+        val serverUrl: String,
+        val channelId: String,
+        val rootId: String,
+        val teamId: String?,
+        val postId: String?,
+        val isCRTEnabled: Boolean,
+        val since: Long
+)
+
+data class CachedResponse(
+        val etag: String?,
+        val lastModified: String?,
+        val body: String
+)
+
+data class JournalStage(
+        val stage: String,
+        val data: String
+)
+
+/**
+ * Small native database used to persist push notification work that has to survive the process,
+ * it is independent of the app and server databases managed by WatermelonDB.
+ */
+class PushNotificationStore private constructor(context: Context) :
+        SQLiteOpenHelper(context.applicationContext, DATABASE_NAME, null, DATABASE_VERSION) {
+
+    override fun onCreate(db: SQLiteDatabase) {
+        onUpgrade(db, 0, DATABASE_VERSION)
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        if (oldVersion < 1) {
+            db.execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS AckOutbox
+                    (id TEXT PRIMARY KEY, server_url TEXT NOT NULL, post_id TEXT, type TEXT,
+                    received_at INTEGER NOT NULL, attempts INTEGER NOT NULL DEFAULT 0)
+                    """.trimIndent()
+            )
+        }
+        if (oldVersion < 2) {
+            db.execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS PendingSync
+                    (id INTEGER PRIMARY KEY AUTOINCREMENT, server_url TEXT NOT NULL, team_id TEXT, channel_id TEXT,
+                    receiving_threads INTEGER NOT NULL, data TEXT NOT NULL, created_at INTEGER NOT NULL)
+                    """.trimIndent()
+            )
+        }
+        if (oldVersion < 3) {
+            db.execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS ProcessedPush
+                    (server_url TEXT NOT NULL, push_key TEXT NOT NULL, processed_at INTEGER NOT NULL,
+                    PRIMARY KEY (server_url, push_key))
+                    """.trimIndent()
+            )
+        }
+        if (oldVersion < 4) {
+            db.execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS PushJournal
+                    (id TEXT PRIMARY KEY, server_url TEXT NOT NULL, payload TEXT NOT NULL, stages TEXT NOT NULL,
+                    state TEXT NOT NULL, session TEXT NOT NULL, updated_at INTEGER NOT NULL)
+                    """.trimIndent()
+            )
+        }
+        if (oldVersion < 5) {
+            db.execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS DeferredSync
+                    (server_url TEXT NOT NULL, channel_id TEXT NOT NULL, root_id TEXT NOT NULL, team_id TEXT, post_id TEXT,
+                    is_crt_enabled INTEGER NOT NULL, since INTEGER NOT NULL, PRIMARY KEY (server_url, channel_id, root_id))
+                    """.trimIndent()
+            )
+        }
+        if (oldVersion < 6) {
+            db.execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS ConditionalResponse
+                    (server_url TEXT NOT NULL, endpoint TEXT NOT NULL, etag TEXT, last_modified TEXT, body TEXT NOT NULL,
+                    updated_at INTEGER NOT NULL, PRIMARY KEY (server_url, endpoint))
+                    """.trimIndent()
+            )
+        }
+        if (oldVersion < 7) {
+            // The journal keeps one row per stage instead of rewriting the whole state on every stage,
+            // journals of the previous layout are short lived and are dropped
+            db.execSQL("DROP TABLE IF EXISTS PushJournal")
+            db.execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS PushJournal
+                    (id TEXT PRIMARY KEY, server_url TEXT NOT NULL, payload TEXT NOT NULL, session TEXT NOT NULL,
+                    updated_at INTEGER NOT NULL)
+                    """.trimIndent()
+            )
+            db.execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS PushJournalStage
+                    (journal_id TEXT NOT NULL, stage TEXT NOT NULL, data TEXT NOT NULL, PRIMARY KEY (journal_id, stage))
+                    """.trimIndent()
+            )
+        }
+    }
+
+    fun insertAck(ackId: String, serverUrl: String, postId: String?, type: String?, receivedAt: Long) {
+        val values = ContentValues()
+        values.put("id", ackId)
+        values.put("server_url", serverUrl)
+        values.put("post_id", postId)
+        values.put("type", type)
+        values.put("received_at", receivedAt)
+        writableDatabase.insertWithOnConflict("AckOutbox", null, values, SQLiteDatabase.CONFLICT_IGNORE)
+    }
+
+    fun getPendingAcks(limit: Int): List<PendingAck> {
+        val acks = ArrayList<PendingAck>()
+        readableDatabase.rawQuery(
+                "SELECT id, server_url, post_id, type, received_at, attempts FROM AckOutbox ORDER BY received_at LIMIT ?",
+                arrayOf(limit.toString())
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                acks.add(PendingAck(
+                        cursor.getString(0),
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        cursor.getString(3),
+                        cursor.getLong(4),
+                        cursor.getInt(5)
+                ))
+            }
+        }
+        return acks
+    }
+
+    fun deleteAck(ackId: String) {
+        writableDatabase.delete("AckOutbox", "id = ?", arrayOf(ackId))
+    }
+
+    fun incrementAckAttempts(ackId: String) {
+        writableDatabase.execSQL("UPDATE AckOutbox SET attempts = attempts + 1 WHERE id = ?", arrayOf(ackId))
+    }
+
+    fun deleteExpiredAcks(receivedBefore: Long, maxAttempts: Int): Int {
+        return writableDatabase.delete(
+                "AckOutbox",
+                "received_at < ? OR attempts >= ?",
+                arrayOf(receivedBefore.toString(), maxAttempts.toString())
+        )
+    }
+
+    fun insertPendingSync(serverUrl: String, teamId: String?, channelId: String?, receivingThreads: Boolean, data: String): Long {
+        val values = ContentValues()
+        values.put("server_url", serverUrl)
+        values.put("team_id", teamId)
+        values.put("channel_id", channelId)
+        values.put("receiving_threads", if (receivingThreads) 1 else 0)
+        values.put("data", data)
+        values.put("created_at", System.currentTimeMillis())
+        return writableDatabase.insertOrThrow("PendingSync", null, values)
+    }
+
+    fun getPendingSyncs(afterId: Long, limit: Int): List<PendingSync> {
+        val syncs = ArrayList<PendingSync>()
+        readableDatabase.rawQuery(
+                "SELECT id, server_url, team_id, channel_id, receiving_threads, data FROM PendingSync WHERE id > ? ORDER BY id LIMIT ?",
+                arrayOf(afterId.toString(), limit.toString())
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                syncs.add(PendingSync(
+                        cursor.getLong(0),
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        cursor.getString(3),
+                        cursor.getInt(4) == 1,
+                        cursor.getString(5)
+                ))
+            }
+        }
+        return syncs
+    }
+
+    fun deletePendingSyncs(ids: List<Long>) {
+        if (ids.isEmpty()) {
+            return
+        }
+        val args = ids.joinToString(",") { "?" }
+        writableDatabase.delete("PendingSync", "id IN ($args)", ids.map { it.toString() }.toTypedArray())
+    }
+
+    fun deleteAllPendingSyncs(): Int {
+        return writableDatabase.delete("PendingSync", null, null)
+    }
+
+    fun deleteExpiredSyncs(createdBefore: Long): Int {
+        return writableDatabase.delete("PendingSync", "created_at < ?", arrayOf(createdBefore.toString()))
+    }
+
+    fun isProcessed(serverUrl: String, keys: List<String>): Boolean {
+        if (keys.isEmpty()) {
+            return false
+        }
+
+        val placeholders = keys.joinToString(",") { "?" }
+        return DatabaseUtils.queryNumEntries(
+                readableDatabase,
+                "ProcessedPush",
+                "server_url = ? AND push_key IN ($placeholders)",
+                arrayOf(serverUrl, *keys.toTypedArray())
+        ) > 0
+    }
+
+    /**
+     * Records the keys of a push once it was handled, only the most recent keys of each server are kept.
+     */
+    fun markProcessed(serverUrl: String, keys: List<String>, maxKeysPerServer: Int) {
+        if (keys.isEmpty()) {
+            return
+        }
+
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            val now = System.currentTimeMillis()
+            for (key in keys) {
+                val values = ContentValues()
+                values.put("server_url", serverUrl)
+                values.put("push_key", key)
+                values.put("processed_at", now)
+                db.insertWithOnConflict("ProcessedPush", null, values, SQLiteDatabase.CONFLICT_REPLACE)
+            }
+
+            db.execSQL(
+                    """
+                    DELETE FROM ProcessedPush WHERE server_url = ? AND push_key NOT IN
+                    (SELECT push_key FROM ProcessedPush WHERE server_url = ? ORDER BY processed_at DESC LIMIT ?)
+                    """.trimIndent(),
+                    arrayOf(serverUrl, serverUrl, maxKeysPerServer)
+            )
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    /**
+     * Records a completed stage of a journal together with the data that stage added,
+     * the journal itself is only written along with its first stage of the session.
+     */
+    fun saveJournalStage(key: String, serverUrl: String, payload: String, session: String?, stage: String, data: String) {
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            if (session != null) {
+                val journal = ContentValues()
+                journal.put("id", key)
+                journal.put("server_url", serverUrl)
+                journal.put("payload", payload)
+                journal.put("session", session)
+                journal.put("updated_at", System.currentTimeMillis())
+                db.insertWithOnConflict("PushJournal", null, journal, SQLiteDatabase.CONFLICT_REPLACE)
+            }
+
+            val values = ContentValues()
+            values.put("journal_id", key)
+            values.put("stage", stage)
+            values.put("data", data)
+            db.insertWithOnConflict("PushJournalStage", null, values, SQLiteDatabase.CONFLICT_REPLACE)
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    fun getJournalStages(key: String): List<JournalStage> {
+        val stages = ArrayList<JournalStage>()
+        readableDatabase.rawQuery(
+                "SELECT stage, data FROM PushJournalStage WHERE journal_id = ? ORDER BY rowid",
+                arrayOf(key)
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                stages.add(JournalStage(cursor.getString(0), cursor.getString(1)))
+            }
+        }
+        return stages
+    }
+
+    fun getInterruptedJournalPayloads(currentSession: String): List<String> {
+        val payloads = ArrayList<String>()
+        readableDatabase.rawQuery(
+                "SELECT payload FROM PushJournal WHERE session != ? ORDER BY updated_at",
+                arrayOf(currentSession)
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                payloads.add(cursor.getString(0))
+            }
+        }
+        return payloads
+    }
+
+    fun deleteJournal(key: String) {
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            db.delete("PushJournalStage", "journal_id = ?", arrayOf(key))
+            db.delete("PushJournal", "id = ?", arrayOf(key))
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    fun deleteExpiredJournals(updatedBefore: Long): Int {
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            val args = arrayOf(updatedBefore.toString())
+            db.delete("PushJournalStage", "journal_id IN (SELECT id FROM PushJournal WHERE updated_at < ?)", args)
+            val deleted = db.delete("PushJournal", "updated_at < ?", args)
+            db.setTransactionSuccessful()
+            return deleted
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    /**
+     * Records that a channel or thread needs to be synced, a record that already exists keeps
+     * the time of the first push so that everything since then is synced.
+     */
+    fun insertDeferredSync(serverUrl: String, channelId: String, rootId: String?, teamId: String?, postId: String?, isCRTEnabled: Boolean, since: Long) {
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            val values = ContentValues()
+            values.put("server_url", serverUrl)
+            values.put("channel_id", channelId)
+            values.put("root_id", rootId ?: "")
+            values.put("team_id", teamId)
+            values.put("post_id", postId)
+            values.put("is_crt_enabled", if (isCRTEnabled) 1 else 0)
+            values.put("since", since)
+            if (db.insertWithOnConflict("DeferredSync", null, values, SQLiteDatabase.CONFLICT_IGNORE) == -1L) {
+                values.remove("since")
+                db.update(
+                        "DeferredSync",
+                        values,
+                        "server_url = ? AND channel_id = ? AND root_id = ?",
+                        arrayOf(serverUrl, channelId, rootId ?: "")
+                )
+            }
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    fun getDeferredSyncs(): List<DeferredSync> {
+        val syncs = ArrayList<DeferredSync>()
+        readableDatabase.rawQuery(
+                "SELECT server_url, channel_id, root_id, team_id, post_id, is_crt_enabled, since FROM DeferredSync ORDER BY since",
+                null
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                syncs.add(DeferredSync(
+                        cursor.getString(0),
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        cursor.getString(3),
+                        cursor.getString(4),
+                        cursor.getInt(5) == 1,
+                        cursor.getLong(6)
+                ))
+            }
+        }
+        return syncs
+    }
+
+    fun deleteDeferredSync(sync: DeferredSync) {
+        writableDatabase.delete(
+                "DeferredSync",
+                "server_url = ? AND channel_id = ? AND root_id = ?",
+                arrayOf(sync.serverUrl, sync.channelId, sync.rootId)
+        )
+    }
+
+    fun deleteExpiredDeferredSyncs(sinceBefore: Long): Int {
+        return writableDatabase.delete("DeferredSync", "since < ?", arrayOf(sinceBefore.toString()))
+    }
+
+    fun getCachedResponse(serverUrl: String, endpoint: String): CachedResponse? {
+        readableDatabase.rawQuery(
+                "SELECT etag, last_modified, body FROM ConditionalResponse WHERE server_url = ? AND endpoint = ?",
+                arrayOf(serverUrl, endpoint)
+        ).use { cursor ->
+            if (cursor.moveToFirst()) {
+                return CachedResponse(cursor.getString(0), cursor.getString(1), cursor.getString(2))
+            }
+        }
+        return null
+    }
+
+    fun saveCachedResponse(serverUrl: String, endpoint: String, response: CachedResponse) {
+        val values = ContentValues()
+        values.put("server_url", serverUrl)
+        values.put("endpoint", endpoint)
+        values.put("etag", response.etag)
+        values.put("last_modified", response.lastModified)
+        values.put("body", response.body)
+        values.put("updated_at", System.currentTimeMillis())
+        writableDatabase.insertWithOnConflict("ConditionalResponse", null, values, SQLiteDatabase.CONFLICT_REPLACE)
+    }
+
+    fun touchCachedResponse(serverUrl: String, endpoint: String) {
+        val values = ContentValues()
+        values.put("updated_at", System.currentTimeMillis())
+        writableDatabase.update("ConditionalResponse", values, "server_url = ? AND endpoint = ?", arrayOf(serverUrl, endpoint))
+    }
+
+    fun deleteCachedResponse(serverUrl: String, endpoint: String) {
+        writableDatabase.delete("ConditionalResponse", "server_url = ? AND endpoint = ?", arrayOf(serverUrl, endpoint))
+    }
+
+    fun deleteExpiredCachedResponses(updatedBefore: Long): Int {
+        return writableDatabase.delete("ConditionalResponse", "updated_at < ?", arrayOf(updatedBefore.toString()))
+    }
+
+    companion object {
+        private const val DATABASE_NAME = "push_notifications.db"
+        private const val DATABASE_VERSION = 7
+
+        @Volatile
+        private var instance: PushNotificationStore? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): PushNotificationStore {
+            return instance ?: synchronized(this) {
+                instance ?: PushNotificationStore(context).also { instance = it }
+            }
+        }
+    }
+}
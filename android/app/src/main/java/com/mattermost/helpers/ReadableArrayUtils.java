@@ -98,7 +98,7 @@ public class ReadableArrayUtils {
         WritableArray writableArray = Arguments.createArray();
 
         for (Object value : array) {
-            if (value == null) {
+            if (value == null || value == JSONObject.NULL) {
                 writableArray.pushNull();
             } else if (value instanceof Boolean) {
                 writableArray.pushBoolean((Boolean) value);
@@ -106,6 +106,8 @@ public class ReadableArrayUtils {
                 writableArray.pushDouble((Double) value);
             } else if (value instanceof Integer) {
                 writableArray.pushInt((Integer) value);
+            } else if (value instanceof Long) {
+                writableArray.pushDouble(((Long) value).doubleValue());
             } else if (value instanceof String) {
                 writableArray.pushString((String) value);
             } else if (value instanceof Map) {
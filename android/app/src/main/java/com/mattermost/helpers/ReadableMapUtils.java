@@ -124,7 +124,7 @@ public class ReadableMapUtils {
             Map.Entry<String, Object> pair = iterator.next();
             Object value = pair.getValue();
 
-            if (value == null) {
+            if (value == null || value == JSONObject.NULL) {
                 writableMap.putNull(pair.getKey());
             } else if (value instanceof Boolean) {
                 writableMap.putBoolean(pair.getKey(), (Boolean) value);
@@ -132,6 +132,8 @@ public class ReadableMapUtils {
                 writableMap.putDouble(pair.getKey(), (Double) value);
             } else if (value instanceof Integer) {
                 writableMap.putInt(pair.getKey(), (Integer) value);
+            } else if (value instanceof Long) {
+                writableMap.putDouble(pair.getKey(), ((Long) value).doubleValue());
             } else if (value instanceof String) {
                 writableMap.putString(pair.getKey(), (String) value);
             } else if (value instanceof Map)
@@ -31,47 +31,65 @@ fun insertCategory(db: WMDatabase, category: ReadableMap) {
     }
 }
 
-fun insertCategoryChannels(db: WMDatabase, categoryId: String, teamId: String, channelIds: ReadableArray) {
-    try {
-        for (i in 0 until channelIds.size()) {
-            val channelId = channelIds.getString(i)
-            val id = "${teamId}_$channelId"
-            db.execute(
-                    """
-                    INSERT INTO CategoryChannel
-                    (id, category_id, channel_id, sort_order, _changed, _status)
-                    VALUES (?, ?, ?, ?, '', 'created')
-                    """.trimIndent(),
-                    arrayOf(id, categoryId, channelId, i)
-            )
-        }
-    } catch (e: Exception) {
-        e.printStackTrace()
-    }
+private class ExistingCategory(val displayName: String?, val muted: Boolean, val sortOrder: Int, val sorting: String?)
+
+private class ExistingCategoryChannel(val categoryId: String, val sortOrder: Int)
+
+fun isChannelCategorized(db: WMDatabase, teamId: String, channelId: String): Boolean {
+    return find(db, "CategoryChannel", "${teamId}_$channelId") != null
 }
 
+/**
+ * Saves the categories of a team by comparing them with the rows already in the database,
+ * only the categories and category channels that are missing or changed are written.
+ */
 fun insertCategoriesWithChannels(db: WMDatabase, orderCategories: ReadableMap) {
     val categories = orderCategories.getArray("categories") ?: return
+    val categoryIds = ArrayList<String>()
+    val teamIds = HashSet<String>()
+    for (i in 0 until categories.size()) {
+        val category = categories.getMap(i)
+        category.getString("id")?.let { categoryIds.add(it) }
+        category.getString("team_id")?.let { teamIds.add(it) }
+    }
+    if (categoryIds.isEmpty()) {
+        return
+    }
+
+    val existingCategories = queryExistingCategories(db, categoryIds)
+    val existingCategoryChannels = queryExistingCategoryChannels(db, teamIds)
     for (i in 0 until categories.size()) {
         val category = categories.getMap(i)
-        val id = category.getString("id")
+        val id = category.getString("id") ?: continue
         val teamId = category.getString("team_id")
+        val existing = existingCategories[id]
+        if (existing == null) {
+            insertCategory(db, category)
+        } else {
+            updateCategoryIfNeeded(db, id, existing, category)
+        }
+
         val channelIds = category.getArray("channel_ids")
-        insertCategory(db, category)
-        if (id != null && teamId != null) {
-            channelIds?.let { insertCategoryChannels(db, id, teamId, it) }
+        if (teamId != null && channelIds != null) {
+            syncCategoryChannels(db, id, teamId, channelIds, existingCategoryChannels)
         }
     }
 }
 
 fun insertChannelToDefaultCategory(db: WMDatabase, categoryChannels: ReadableArray) {
     try {
+        val categoryIds = HashSet<String>()
+        for (i in 0 until categoryChannels.size()) {
+            categoryChannels.getMap(i).getString("category_id")?.let { categoryIds.add(it) }
+        }
+        val counts = countCategoryChannels(db, categoryIds)
+
         for (i in 0 until categoryChannels.size()) {
             val cc = categoryChannels.getMap(i)
             val id = cc.getString("id")
-            val categoryId = cc.getString("category_id")
+            val categoryId = cc.getString("category_id") ?: continue
             val channelId = cc.getString("channel_id")
-            val count = countByColumn(db, "CategoryChannel", "category_id", categoryId)
+            val count = counts[categoryId] ?: 0
             db.execute(
                     """
                         INSERT INTO CategoryChannel
@@ -80,8 +98,118 @@ fun insertChannelToDefaultCategory(db: WMDatabase, categoryChannels: ReadableArr
                     """.trimIndent(),
                     arrayOf(id, categoryId, channelId, if (count > 0) count + 1 else count)
             )
+            counts[categoryId] = count + 1
+        }
+    } catch (e: Exception) {
+        e.printStackTrace()
+    }
+}
+
+private fun updateCategoryIfNeeded(db: WMDatabase, id: String, existing: ExistingCategory, category: ReadableMap) {
+    try {
+        val displayName = category.getString("display_name")
+        val muted = category.getBoolean("muted")
+        val sortOrder = category.getInt("sort_order") / 10
+        val sorting = category.getString("sorting") ?: "recent"
+        if (existing.displayName == displayName && existing.muted == muted && existing.sortOrder == sortOrder && existing.sorting == sorting) {
+            return
+        }
+
+        db.execute(
+                "UPDATE Category SET display_name = ?, muted = ?, sort_order = ?, sorting = ?, _status = 'updated' WHERE id = ?",
+                arrayOf(displayName, muted, sortOrder, sorting, id)
+        )
+    } catch (e: Exception) {
+        e.printStackTrace()
+    }
+}
+
+private fun syncCategoryChannels(db: WMDatabase, categoryId: String, teamId: String, channelIds: ReadableArray, existingCategoryChannels: Map<String, ExistingCategoryChannel>) {
+    try {
+        for (i in 0 until channelIds.size()) {
+            val channelId = channelIds.getString(i)
+            val id = "${teamId}_$channelId"
+            val existing = existingCategoryChannels[id]
+            if (existing == null) {
+                db.execute(
+                        """
+                        INSERT INTO CategoryChannel
+                        (id, category_id, channel_id, sort_order, _changed, _status)
+                        VALUES (?, ?, ?, ?, '', 'created')
+                        """.trimIndent(),
+                        arrayOf(id, categoryId, channelId, i)
+                )
+            } else if (existing.categoryId != categoryId || existing.sortOrder != i) {
+                db.execute(
+                        "UPDATE CategoryChannel SET category_id = ?, sort_order = ?, _status = 'updated' WHERE id = ?",
+                        arrayOf(categoryId, i, id)
+                )
+            }
+        }
+    } catch (e: Exception) {
+        e.printStackTrace()
+    }
+}
+
+private fun queryExistingCategories(db: WMDatabase, categoryIds: List<String>): Map<String, ExistingCategory> {
+    val existing = HashMap<String, ExistingCategory>()
+    try {
+        val placeholders = categoryIds.joinToString(",") { "?" }
+        db.rawQuery(
+                "SELECT id, display_name, muted, sort_order, sorting FROM Category WHERE id IN ($placeholders)",
+                arrayOf<Any?>(*categoryIds.toTypedArray())
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                existing[cursor.getString(0)] = ExistingCategory(cursor.getString(1), cursor.getInt(2) == 1, cursor.getInt(3), cursor.getString(4))
+            }
         }
     } catch (e: Exception) {
         e.printStackTrace()
     }
+    return existing
+}
+
+// Channels can move between the categories of a team, so the rows of every category of the team are loaded
+private fun queryExistingCategoryChannels(db: WMDatabase, teamIds: Set<String>): Map<String, ExistingCategoryChannel> {
+    val existing = HashMap<String, ExistingCategoryChannel>()
+    if (teamIds.isEmpty()) {
+        return existing
+    }
+
+    try {
+        val placeholders = teamIds.joinToString(",") { "?" }
+        db.rawQuery(
+                """
+                SELECT cc.id, cc.category_id, cc.sort_order FROM CategoryChannel cc
+                INNER JOIN Category c ON c.id = cc.category_id
+                WHERE c.team_id IN ($placeholders)
+                """.trimIndent(),
+                arrayOf<Any?>(*teamIds.toTypedArray())
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                existing[cursor.getString(0)] = ExistingCategoryChannel(cursor.getString(1), cursor.getInt(2))
+            }
+        }
+    } catch (e: Exception) {
+        e.printStackTrace()
+    }
+    return existing
+}
+
+private fun countCategoryChannels(db: WMDatabase, categoryIds: Set<String>): HashMap<String, Int> {
+    val counts = HashMap<String, Int>()
+    if (categoryIds.isEmpty()) {
+        return counts
+    }
+
+    val placeholders = categoryIds.joinToString(",") { "?" }
+    db.rawQuery(
+            "SELECT category_id, COUNT(*) FROM CategoryChannel WHERE category_id IN ($placeholders) GROUP BY category_id",
+            arrayOf<Any?>(*categoryIds.toTypedArray())
+    ).use { cursor ->
+        while (cursor.moveToNext()) {
+            counts[cursor.getString(0)] = cursor.getInt(1)
+        }
+    }
+    return counts
 }
@@ -203,15 +203,17 @@ fun updateMyChannel(db: WMDatabase, myChanel: JSONObject) {
         val lastViewedAt = try { myChanel.getDouble("last_viewed_at") } catch (e: JSONException) { 0 }
         val lastFetchedAt = try { myChanel.getDouble("last_fetched_at") } catch (e: JSONException) { 0 }
 
+        // Data fetched before the app synced the channel must not roll back its counts and timestamps
         db.execute(
                 """
                     UPDATE MyChannel SET message_count=?, mentions_count=?, is_unread=?, 
-                    last_post_at=?, last_viewed_at=?, last_fetched_at=?, _status = 'updated' 
-                    WHERE id=?
+                    last_post_at=?, last_viewed_at=?, last_fetched_at=MAX(last_fetched_at, ?), _status = 'updated' 
+                    WHERE id=? AND last_post_at <= ? AND last_viewed_at <= ?
                     """,
                 arrayOf(
                         msgCount, mentionsCount, isUnread,
-                        lastPostAt, lastViewedAt, lastFetchedAt, id
+                        lastPostAt, lastViewedAt, lastFetchedAt, id,
+                        lastPostAt, lastViewedAt
                 )
         )
     } catch (e: Exception) {
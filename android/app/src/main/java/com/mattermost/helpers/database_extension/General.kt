@@ -6,60 +6,106 @@ import android.text.TextUtils
 import com.facebook.react.bridge.Arguments
 import com.facebook.react.bridge.ReadableMap
 import com.mattermost.helpers.DatabaseHelper
+import com.mattermost.helpers.PendingSync
 import com.mattermost.helpers.QueryArgs
+import com.mattermost.helpers.ReadableMapUtils
 import com.mattermost.helpers.mapCursor
 import com.nozbe.watermelondb.WMDatabase
 import java.util.Arrays
+import org.json.JSONObject
 
 internal fun DatabaseHelper.saveToDatabase(db: WMDatabase, data: ReadableMap, teamId: String?, channelId: String?, receivingThreads: Boolean) {
     db.transaction {
-        val posts = data.getMap("posts")
-        data.getMap("team")?.let { insertTeam(db, it) }
-        data.getMap("myTeam")?.let { insertMyTeam(db, it) }
-        data.getMap("channel")?.let { handleChannel(db, it) }
-        data.getMap("myChannel")?.let { handleMyChannel(db, it, posts, receivingThreads) }
-        data.getMap("categories")?.let { insertCategoriesWithChannels(db, it) }
-        data.getArray("categoryChannels")?.let { insertChannelToDefaultCategory(db, it) }
-        if (channelId != null) {
-            handlePosts(db, posts, channelId, receivingThreads)
+        insertNotificationData(db, data, teamId, channelId, receivingThreads)
+    }
+}
+
+// Tables written when saving the notification data
+private val notificationDataTables = arrayOf(
+        "Category", "CategoryChannel", "Channel", "ChannelInfo", "ChannelMembership", "CustomEmoji", "File",
+        "MyChannel", "MyChannelSettings", "MyTeam", "Post", "PostsInChannel", "PostsInThread", "Reaction",
+        "Team", "TeamMembership", "TeamThreadsSync", "Thread", "ThreadParticipant", "ThreadsInTeam", "User"
+)
+
+/**
+ * Saves the notification data and returns the ids of the records inserted, updated or deleted per table,
+ * the changes are captured with temporary triggers that only exist in the connection used to save.
+ */
+internal fun DatabaseHelper.saveToDatabaseWithChanges(db: WMDatabase, data: ReadableMap, teamId: String?, channelId: String?, receivingThreads: Boolean): Map<String, List<String>> {
+    db.execute("CREATE TEMP TABLE IF NOT EXISTS ChangedRecord (table_name TEXT NOT NULL, id TEXT NOT NULL, PRIMARY KEY (table_name, id))")
+    for (table in notificationDataTables) {
+        for ((event, row) in arrayOf("INSERT" to "NEW", "UPDATE" to "NEW", "DELETE" to "OLD")) {
+            db.execute(
+                    """
+                    CREATE TEMP TRIGGER IF NOT EXISTS Changed${table}On$event AFTER $event ON $table
+                    BEGIN INSERT OR IGNORE INTO ChangedRecord (table_name, id) VALUES ('$table', $row.id); END
+                    """.trimIndent()
+            )
+        }
+    }
+
+    try {
+        saveToDatabase(db, data, teamId, channelId, receivingThreads)
+
+        val changes = HashMap<String, MutableList<String>>()
+        db.rawQuery("SELECT table_name, id FROM ChangedRecord").use { cursor ->
+            while (cursor.moveToNext()) {
+                changes.getOrPut(cursor.getString(0)) { ArrayList() }.add(cursor.getString(1))
+            }
         }
-        data.getArray("threads")?.let {
-            val threadsArray = ArrayList<ReadableMap>()
-            for (i in 0 until it.size()) {
-                threadsArray.add(it.getMap(i))
+        return changes
+    } finally {
+        for (table in notificationDataTables) {
+            for (event in arrayOf("INSERT", "UPDATE", "DELETE")) {
+                db.execute("DROP TRIGGER IF EXISTS Changed${table}On$event")
             }
-            handleThreads(db, threadsArray, teamId)
         }
-        data.getArray("users")?.let { handleUsers(db, it) }
+        db.execute("DROP TABLE IF EXISTS ChangedRecord")
     }
 }
 
-fun DatabaseHelper.getServerUrlForIdentifier(identifier: String): String? {
-    try {
-        val query = "SELECT url FROM Servers WHERE identifier=?"
-        defaultDatabase!!.rawQuery(query, arrayOf(identifier)).use { cursor ->
-            if (cursor.count == 1) {
-                cursor.moveToFirst()
-                return cursor.getString(0)
-            }
+internal fun DatabaseHelper.saveAllToDatabase(db: WMDatabase, items: List<PendingSync>) {
+    db.transaction {
+        for (item in items) {
+            val data = ReadableMapUtils.toWritableMap(ReadableMapUtils.toMap(JSONObject(item.data)))
+            insertNotificationData(db, data, item.teamId, item.channelId, item.receivingThreads)
         }
-    } catch (e: Exception) {
-        e.printStackTrace()
-        // let it fall to return null
     }
-    return null
+}
+
+private fun DatabaseHelper.insertNotificationData(db: WMDatabase, data: ReadableMap, teamId: String?, channelId: String?, receivingThreads: Boolean) {
+    val posts = data.getMap("posts")
+    data.getMap("team")?.let { insertTeam(db, it) }
+    data.getMap("myTeam")?.let { insertMyTeam(db, it) }
+    data.getMap("channel")?.let { handleChannel(db, it) }
+    data.getMap("myChannel")?.let { handleMyChannel(db, it, posts, receivingThreads) }
+    data.getMap("categories")?.let { insertCategoriesWithChannels(db, it) }
+    data.getArray("categoryChannels")?.let { insertChannelToDefaultCategory(db, it) }
+    if (channelId != null) {
+        handlePosts(db, posts, channelId, receivingThreads)
+    }
+    data.getArray("threads")?.let {
+        val threadsArray = ArrayList<ReadableMap>()
+        for (i in 0 until it.size()) {
+            threadsArray.add(it.getMap(i))
+        }
+        handleThreads(db, threadsArray, teamId)
+    }
+    data.getArray("users")?.let { handleUsers(db, it) }
+}
+
+fun DatabaseHelper.getServerUrlForIdentifier(identifier: String): String? {
+    // A server added since the registry was loaded is picked up by reloading it
+    val server = getServers().singleOrNull { it.identifier == identifier }
+            ?: getServers(forceReload = true).singleOrNull { it.identifier == identifier }
+    return server?.url
 }
 
 fun DatabaseHelper.getDatabaseForServer(context: Context?, serverUrl: String): WMDatabase? {
     try {
-        val query = "SELECT db_path FROM Servers WHERE url=?"
-        defaultDatabase!!.rawQuery(query, arrayOf(serverUrl)).use { cursor ->
-            if (cursor.count == 1) {
-                cursor.moveToFirst()
-                val databasePath = String.format("file://%s", cursor.getString(0))
-                return WMDatabase.buildDatabase(databasePath, context!!, SQLiteDatabase.CREATE_IF_NECESSARY)
-            }
-        }
+        val server = getServers().singleOrNull { it.url == serverUrl } ?: return null
+        val databasePath = String.format("file://%s", server.dbPath)
+        return WMDatabase.buildDatabase(databasePath, context!!, SQLiteDatabase.CREATE_IF_NECESSARY)
     } catch (e: Exception) {
         e.printStackTrace()
         // let it fall to return null
@@ -68,19 +114,7 @@ fun DatabaseHelper.getDatabaseForServer(context: Context?, serverUrl: String): W
 }
 
 fun DatabaseHelper.getDeviceToken(): String? {
-    try {
-        val query = "SELECT value FROM Global WHERE id=?"
-        defaultDatabase!!.rawQuery(query, arrayOf("deviceToken")).use { cursor ->
-            if (cursor.count == 1) {
-                cursor.moveToFirst()
-                return cursor.getString(0)
-            }
-        }
-    } catch (e: Exception) {
-        e.printStackTrace()
-    }
-
-    return null
+    return getCachedDeviceToken()
 }
 
 fun find(db: WMDatabase, tableName: String, id: String?): ReadableMap? {
@@ -164,21 +198,3 @@ fun queryByColumn(db: WMDatabase, tableName: String, columnName: String, values:
     }
     return list
 }
-
-fun countByColumn(db: WMDatabase, tableName: String, columnName: String, value: Any?): Int {
-    try {
-        db.rawQuery(
-                "SELECT COUNT(*) FROM $tableName WHERE $columnName == ? LIMIT 1",
-                arrayOf(value)
-        ).use { cursor ->
-            if (cursor.count <= 0) {
-                return 0
-            }
-            cursor.moveToFirst()
-            return cursor.getInt(0)
-        }
-    } catch (e: Exception) {
-        e.printStackTrace()
-        return 0
-    }
-}
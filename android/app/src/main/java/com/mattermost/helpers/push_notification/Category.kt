@@ -4,16 +4,16 @@ import com.facebook.react.bridge.Arguments
 import com.facebook.react.bridge.ReadableArray
 import com.facebook.react.bridge.ReadableMap
 import com.mattermost.helpers.PushNotificationDataRunnable
+import com.mattermost.helpers.PushNotificationStore
 import com.mattermost.helpers.database_extension.findByColumns
 import com.mattermost.helpers.database_extension.queryCurrentUserId
 import com.mattermost.helpers.database_extension.queryMyTeams
 import com.nozbe.watermelondb.WMDatabase
 
-suspend fun PushNotificationDataRunnable.Companion.fetchMyTeamCategories(db: WMDatabase, serverUrl: String, teamId: String): ReadableMap? {
+suspend fun PushNotificationDataRunnable.Companion.fetchMyTeamCategories(db: WMDatabase, store: PushNotificationStore, serverUrl: String, teamId: String): ReadableMap? {
     return try {
         val userId = queryCurrentUserId(db)
-        val categories = fetch(serverUrl, "/api/v4/users/$userId/teams/$teamId/channels/categories")
-        categories?.getMap("data")
+        fetchIfModified(store, serverUrl, "/api/v4/users/$userId/teams/$teamId/channels/categories")
     } catch (e: Exception) {
         e.printStackTrace()
         null
@@ -11,11 +11,19 @@ import com.mattermost.helpers.database_extension.queryCurrentUserId
 import com.nozbe.watermelondb.WMDatabase
 import java.text.Collator
 import java.util.Locale
-
-suspend fun PushNotificationDataRunnable.Companion.fetchMyChannel(db: WMDatabase, serverUrl: String, channelId: String, isCRTEnabled: Boolean): Triple<ReadableMap?, ReadableMap?, ReadableArray?> {
-    val channel = fetch(serverUrl, "/api/v4/channels/$channelId")
-    var channelData = channel?.getMap("data")
-    val myChannelData = channelData?.let { fetchMyChannelData(serverUrl, channelId, isCRTEnabled, it) }
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+
+suspend fun PushNotificationDataRunnable.Companion.fetchMyChannel(db: WMDatabase, serverUrl: String, channelId: String, isCRTEnabled: Boolean): Triple<ReadableMap?, ReadableMap?, ReadableArray?> = coroutineScope {
+    // The channel and the channel member are fetched concurrently
+    val myChannel = async { fetchMyChannelMember(serverUrl, channelId) }
+    // Not a conditional request, the validator of a channel follows its update_at which does not change with new posts
+    // while the message counts and last_post_at used for the unread counts do
+    var channelData = fetch(serverUrl, "/api/v4/channels/$channelId")?.getMap("data")
+    val myChannelData = channelData?.let { myChannelDataWithCounts(myChannel.await(), channelId, isCRTEnabled, it) }
+    if (channelData == null) {
+        myChannel.cancel()
+    }
     val channelType = channelData?.getString("type")
     var profilesArray: ReadableArray? = null
 
@@ -54,13 +62,20 @@ suspend fun PushNotificationDataRunnable.Companion.fetchMyChannel(db: WMDatabase
         }
     }
 
-    return Triple(channelData, myChannelData, profilesArray)
+    Triple(channelData, myChannelData, profilesArray)
+}
+
+private suspend fun PushNotificationDataRunnable.Companion.fetchMyChannelMember(serverUrl: String, channelId: String): ReadableMap? {
+    return try {
+        fetch(serverUrl, "/api/v4/channels/$channelId/members/me")?.getMap("data")
+    } catch (e: Exception) {
+        e.printStackTrace()
+        null
+    }
 }
 
-private suspend fun PushNotificationDataRunnable.Companion.fetchMyChannelData(serverUrl: String, channelId: String, isCRTEnabled: Boolean, channelData: ReadableMap): ReadableMap? {
+private fun myChannelDataWithCounts(myChannelData: ReadableMap?, channelId: String, isCRTEnabled: Boolean, channelData: ReadableMap): ReadableMap? {
     try {
-        val myChannel = fetch(serverUrl, "/api/v4/channels/$channelId/members/me")
-        val myChannelData = myChannel?.getMap("data")
         if (myChannelData != null) {
             val data = Arguments.createMap()
             data.merge(myChannelData)
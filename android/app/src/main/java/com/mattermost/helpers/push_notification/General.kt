@@ -1,14 +1,22 @@
 package com.mattermost.helpers.push_notification
 
+import com.facebook.react.bridge.Arguments
 import com.facebook.react.bridge.ReadableMap
+import com.facebook.react.bridge.WritableMap
+import com.mattermost.helpers.CachedResponse
 import com.mattermost.helpers.Network
 import com.mattermost.helpers.PushNotificationDataRunnable
+import com.mattermost.helpers.PushNotificationStore
+import com.mattermost.helpers.ReadableMapUtils
 import com.mattermost.helpers.ResolvePromise
+import com.mattermost.rnutils.helpers.PushNotificationTracer
 
 import java.io.IOException
 
 import kotlin.coroutines.suspendCoroutine
 
+import org.json.JSONObject
+
 internal suspend fun PushNotificationDataRunnable.Companion.fetch(serverUrl: String, endpoint: String): ReadableMap? {
     return suspendCoroutine { cont ->
         Network.get(serverUrl, endpoint, null, object : ResolvePromise() {
@@ -51,3 +59,63 @@ internal suspend fun PushNotificationDataRunnable.Companion.fetchWithPost(server
         })
     }
 }
+
+// Native maps are consumed when added to another map or array, a map shared between pushes is copied for each of them
+internal fun ReadableMap.copy(): WritableMap {
+    val map = Arguments.createMap()
+    map.merge(this)
+    return map
+}
+
+/**
+ * Fetches an object that rarely changes with a conditional request, the ETag and Last-Modified
+ * validators are stored with the response body so that a 304 response reuses the stored body.
+ *
+ * Returns the response body, not wrapped in the ok / data map returned by fetch.
+ */
+internal fun PushNotificationDataRunnable.Companion.fetchIfModified(store: PushNotificationStore, serverUrl: String, endpoint: String): ReadableMap? {
+    val cached = store.getCachedResponse(serverUrl, endpoint)
+    var options: ReadableMap? = null
+    if (cached != null) {
+        val headers = Arguments.createMap()
+        cached.etag?.let { headers.putString("If-None-Match", it) }
+        cached.lastModified?.let { headers.putString("If-Modified-Since", it) }
+        val map = Arguments.createMap()
+        map.putMap("headers", headers)
+        options = map
+    }
+
+    val response = Network.getSync(serverUrl, endpoint, options) ?: throw IOException("No response for $endpoint")
+    response.use {
+        if (response.code == 304 && cached != null) {
+            store.touchCachedResponse(serverUrl, endpoint)
+            PushNotificationTracer.increment("not_modified")
+            PushNotificationTracer.increment("wire_bytes_saved", cached.body.length.toLong())
+            return toReadableMap(cached.body)
+        }
+
+        if (!response.isSuccessful) {
+            store.deleteCachedResponse(serverUrl, endpoint)
+            throw IOException("Unexpected code ${response.code} ${response.message}")
+        }
+
+        val body = response.body?.string() ?: return null
+        // The body is decompressed by the client, the network response keeps the size that went over the wire
+        val wireBytes = response.networkResponse?.header("Content-Length")?.toLongOrNull() ?: body.length.toLong()
+        PushNotificationTracer.increment("wire_bytes", wireBytes)
+
+        val etag = response.header("ETag")
+        val lastModified = response.header("Last-Modified")
+        if (etag != null || lastModified != null) {
+            store.saveCachedResponse(serverUrl, endpoint, CachedResponse(etag, lastModified, body))
+        } else if (cached != null) {
+            store.deleteCachedResponse(serverUrl, endpoint)
+        }
+
+        return toReadableMap(body)
+    }
+}
+
+private fun toReadableMap(body: String): ReadableMap {
+    return ReadableMapUtils.toWritableMap(ReadableMapUtils.toMap(JSONObject(body)))
+}
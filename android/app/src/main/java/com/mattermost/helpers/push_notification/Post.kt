@@ -5,6 +5,7 @@ import com.facebook.react.bridge.NoSuchKeyException
 import com.facebook.react.bridge.ReadableArray
 import com.facebook.react.bridge.ReadableMap
 import com.facebook.react.bridge.WritableNativeArray
+import com.mattermost.helpers.PushNotificationClassifier
 import com.mattermost.helpers.PushNotificationDataRunnable
 import com.mattermost.helpers.ReadableArrayUtils
 import com.mattermost.helpers.ReadableMapUtils
@@ -20,6 +21,7 @@ internal suspend fun PushNotificationDataRunnable.Companion.fetchPosts(
         val currentUserId = queryCurrentUserId(db)
         val currentUser = find(db, "User", currentUserId)
         val currentUsername = currentUser?.getString("username")
+        PushNotificationClassifier.rememberCurrentUsername(serverUrl, currentUsername)
 
         var additionalParams = ""
         if (isCRTEnabled) {
@@ -5,6 +5,13 @@ import com.facebook.react.bridge.ReadableArray
 import com.facebook.react.bridge.ReadableMap
 import com.mattermost.helpers.PushNotificationDataRunnable
 import com.mattermost.helpers.ReadableArrayUtils
+import com.mattermost.rnutils.helpers.PushNotificationTracer
+import java.util.concurrent.ConcurrentHashMap
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 
 internal suspend fun PushNotificationDataRunnable.Companion.fetchUsersById(serverUrl: String, userIds: ReadableArray): ReadableArray? {
     return try {
@@ -32,30 +39,104 @@ internal suspend fun PushNotificationDataRunnable.Companion.fetchUsersByUsername
     }
 }
 
-internal suspend fun PushNotificationDataRunnable.Companion.fetchNeededUsers(serverUrl: String, loadedUsers: ReadableArray?, data: ReadableMap?): ArrayList<Any> {
-    val userList = ArrayList<Any>()
-    loadedUsers?.let { PushNotificationDataRunnable.addUsersToList(it, userList) }
-    data?.getArray("userIdsToLoad")?.let { ids ->
-        if (ids.size() > 0) {
-            val result = fetchUsersById(serverUrl, ids)
-            result?.let { PushNotificationDataRunnable.addUsersToList(it, userList) }
+// Users being fetched per server, pushes received in a burst wait for the same profiles instead of fetching them again
+private class InFlightUsers {
+    val byId = HashMap<String, CompletableDeferred<ReadableMap?>>()
+    val byUsername = HashMap<String, CompletableDeferred<ReadableMap?>>()
+}
+
+private val inFlightUsers = ConcurrentHashMap<String, InFlightUsers>()
+
+internal suspend fun PushNotificationDataRunnable.Companion.fetchNeededUsers(serverUrl: String, loadedUsers: ReadableArray?, data: ReadableMap?, lookupMissing: Boolean = true): ArrayList<Any> {
+    // The lookups by id and by username can return the same user, users are merged by id
+    val users = LinkedHashMap<String, ReadableMap>()
+    loadedUsers?.let { PushNotificationDataRunnable.addUsersToMap(it.toMapList(), users) }
+
+    if (lookupMissing) {
+        val userIds = data?.getArray("userIdsToLoad")?.toStringList() ?: emptyList()
+        val usernames = data?.getArray("usernamesToLoad")?.toStringList() ?: emptyList()
+        coroutineScope {
+            val byId = if (userIds.isNotEmpty()) async { resolveUsers(serverUrl, userIds, false) } else null
+            val byUsername = if (usernames.isNotEmpty()) async { resolveUsers(serverUrl, usernames, true) } else null
+            byId?.await()?.let { PushNotificationDataRunnable.addUsersToMap(it, users) }
+            byUsername?.await()?.let { PushNotificationDataRunnable.addUsersToMap(it, users) }
+        }
+    }
+
+    data?.getArray("usersFromThreads")?.let { PushNotificationDataRunnable.addUsersToMap(it.toMapList(), users) }
+
+    return ArrayList(users.values)
+}
+
+private suspend fun PushNotificationDataRunnable.Companion.resolveUsers(serverUrl: String, keys: List<String>, byUsername: Boolean): List<ReadableMap> {
+    val inFlight = inFlightUsers.getOrPut(serverUrl) { InFlightUsers() }
+    val pending = if (byUsername) inFlight.byUsername else inFlight.byId
+    val waiting = ArrayList<Deferred<ReadableMap?>>()
+    val owned = HashMap<String, CompletableDeferred<ReadableMap?>>()
+    synchronized(pending) {
+        for (key in keys) {
+            val existing = pending[key]
+            if (existing != null) {
+                waiting.add(existing)
+            } else {
+                val deferred = CompletableDeferred<ReadableMap?>()
+                pending[key] = deferred
+                owned[key] = deferred
+            }
         }
     }
 
-    data?.getArray("usernamesToLoad")?.let { ids ->
-        if (ids.size() > 0) {
-            val result = fetchUsersByUsernames(serverUrl, ids)
-            result?.let { PushNotificationDataRunnable.addUsersToList(it, userList) }
+    val users = ArrayList<ReadableMap>()
+    if (owned.isNotEmpty()) {
+        var fetched: List<ReadableMap> = emptyList()
+        try {
+            val body = ReadableArrayUtils.toWritableArray(owned.keys.toTypedArray())
+            val result = if (byUsername) fetchUsersByUsernames(serverUrl, body) else fetchUsersById(serverUrl, body)
+            fetched = result?.toMapList() ?: emptyList()
+            users.addAll(fetched)
+        } finally {
+            val found = HashMap<String, ReadableMap>()
+            for (user in fetched) {
+                (if (byUsername) user.getString("username") else user.getString("id"))?.let { found[it] = user }
+            }
+            synchronized(pending) {
+                for ((key, deferred) in owned) {
+                    pending.remove(key)
+                    deferred.complete(found[key]?.copy())
+                }
+            }
         }
     }
 
-    data?.getArray("usersFromThreads")?.let { PushNotificationDataRunnable.addUsersToList(it, userList) }
+    if (waiting.isNotEmpty()) {
+        PushNotificationTracer.increment("users.shared", waiting.size.toLong())
+        users.addAll(waiting.awaitAll().mapNotNull { it?.copy() })
+    }
 
-    return userList
+    return users
+}
+
+internal fun PushNotificationDataRunnable.Companion.addUsersToMap(users: List<ReadableMap>, map: LinkedHashMap<String, ReadableMap>) {
+    for (user in users) {
+        val id = user.getString("id") ?: continue
+        if (!map.containsKey(id)) {
+            map[id] = user
+        }
+    }
+}
+
+private fun ReadableArray.toMapList(): List<ReadableMap> {
+    val list = ArrayList<ReadableMap>()
+    for (i in 0 until size()) {
+        getMap(i)?.let { list.add(it) }
+    }
+    return list
 }
 
-internal fun PushNotificationDataRunnable.Companion.addUsersToList(users: ReadableArray, list: ArrayList<Any>) {
-    for (i in 0 until users.size()) {
-        list.add(users.getMap(i))
+private fun ReadableArray.toStringList(): List<String> {
+    val list = ArrayList<String>()
+    for (i in 0 until size()) {
+        getString(i)?.let { list.add(it) }
     }
+    return list
 }
@@ -3,23 +3,34 @@ package com.mattermost.rnbeta
 import android.app.PendingIntent
 import android.content.Context
 import android.os.Bundle
+import android.os.SystemClock
 import android.util.Log
 import androidx.core.app.NotificationCompat
 import com.mattermost.helpers.CustomPushNotificationHelper
 import com.mattermost.helpers.DatabaseHelper
-import com.mattermost.helpers.Network
+import com.mattermost.helpers.PushNotificationClassifier
+import com.mattermost.helpers.PushNotificationClearBatcher
 import com.mattermost.helpers.PushNotificationDataHelper
+import com.mattermost.helpers.PushNotificationDeadline
+import com.mattermost.helpers.PushNotificationDispatcher
+import com.mattermost.helpers.PushNotificationJournal
+import com.mattermost.helpers.PushNotificationRuntime
+import com.mattermost.helpers.PushNotificationStore
+import com.mattermost.helpers.RandomId
 import com.mattermost.helpers.database_extension.getServerUrlForIdentifier
 import com.mattermost.rnutils.helpers.NotificationHelper
-import com.wix.reactnativenotifications.Defs.NOTIFICATION_RECEIVED_EVENT_NAME
+import com.mattermost.rnutils.helpers.PushNotificationEvents
+import com.mattermost.rnutils.helpers.PushNotificationTracer
 import com.wix.reactnativenotifications.core.AppLaunchHelper
 import com.wix.reactnativenotifications.core.AppLifecycleFacade
 import com.wix.reactnativenotifications.core.JsIOHelper
 import com.wix.reactnativenotifications.core.NotificationIntentAdapter
 import com.wix.reactnativenotifications.core.notification.PushNotification
-import kotlinx.coroutines.DelicateCoroutinesApi
-import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 class CustomPushNotification(
         context: Context,
@@ -29,18 +40,18 @@ class CustomPushNotification(
         jsIoHelper: JsIOHelper
 ) : PushNotification(context, bundle, appLifecycleFacade, appLaunchHelper, jsIoHelper) {
     private val dataHelper = PushNotificationDataHelper(context)
+    private var trace: PushNotificationTracer.Trace? = null
+    private var deadline: PushNotificationDeadline? = null
+    private var loadAvatars = true
+    private var isUpdate = false
 
     init {
-        try {
-            DatabaseHelper.instance?.init(context)
-            Network.init(context)
-            NotificationHelper.cleanNotificationPreferencesIfNeeded(context)
-        } catch (e: Exception) {
-            e.printStackTrace()
+        PushNotificationTracer.measure(null, "push_init") {
+            PushNotificationRuntime.ensureInitialized(context)
         }
+        PushNotificationJournal.resumeInterrupted(context)
     }
 
-    @OptIn(DelicateCoroutinesApi::class)
     override fun onReceived() {
         val initialData = mNotificationProps.asBundle()
         val type = initialData.getString("type")
@@ -50,13 +61,23 @@ class CustomPushNotification(
         val signature = initialData.getString("signature")
         val isIdLoaded = initialData.getString("id_loaded") == "true"
         val notificationId = NotificationHelper.getNotificationId(initialData)
-        val serverUrl = addServerUrlToBundle(initialData)
+        val key = ackId ?: RandomId.generate()
+        val pushDeadline = PushNotificationDeadline()
+        val pushTrace = PushNotificationTracer.begin(key)
+        deadline = pushDeadline
+        trace = pushTrace
+        val serverUrl = pushTrace.measure("server_url") { addServerUrlToBundle(initialData) }
 
-        GlobalScope.launch {
+        val queuedAt = SystemClock.elapsedRealtime()
+        val onOverflow: suspend () -> Unit = {
+            handleOverflowedPush(serverUrl, type, ackId, isIdLoaded, notificationId, postId, signature)
+        }
+        PushNotificationDispatcher.dispatch(key, PushNotificationClassifier.priorityFor(initialData), onOverflow) {
+            pushTrace.record("queue", queuedAt, SystemClock.elapsedRealtime() - queuedAt)
             try {
-                handlePushNotificationInCoroutine(serverUrl, type, channelId, ackId, isIdLoaded, notificationId, postId, signature)
-            } catch (e: Exception) {
-                e.printStackTrace()
+                handlePushNotificationInCoroutine(serverUrl, type, channelId, ackId, isIdLoaded, notificationId, postId, signature, pushTrace, pushDeadline)
+            } finally {
+                pushTrace.finish()
             }
         }
     }
@@ -69,26 +90,98 @@ class CustomPushNotification(
             isIdLoaded: Boolean,
             notificationId: Int,
             postId: String?,
-            signature: String?
+            signature: String?,
+            pushTrace: PushNotificationTracer.Trace,
+            pushDeadline: PushNotificationDeadline
     ) {
+        processOnce(serverUrl, ackId, postId) {
+            processPushNotification(serverUrl, type, channelId, ackId, isIdLoaded, notificationId, postId, signature, pushTrace, pushDeadline)
+        }
+    }
+
+    private suspend fun processPushNotification(
+            serverUrl: String?,
+            type: String?,
+            channelId: String?,
+            ackId: String?,
+            isIdLoaded: Boolean,
+            notificationId: Int,
+            postId: String?,
+            signature: String?,
+            pushTrace: PushNotificationTracer.Trace,
+            pushDeadline: PushNotificationDeadline
+    ) = coroutineScope {
+
+        // The ack, the signature verification and the data fetching run concurrently,
+        // only id-loaded notifications need to wait for the ack to have the notification payload,
+        // other acks are persisted in the outbox and delivered in batches by ReceiptDeliveryWorker
+        val verification = async(PushNotificationDispatcher.database) {
+            pushTrace.measure("signature") {
+                CustomPushNotificationHelper.verifySignature(mContext, signature, serverUrl, ackId)
+            }
+        }
+
+        // Without connectivity the notification is posted from the push payload and the data is synced once back online
+        val isOnline = PushNotificationRuntime.isOnline(mContext)
         if (ackId != null && serverUrl != null) {
-            val response = ReceiptDelivery.send(ackId, serverUrl, postId, type, isIdLoaded)
-            if (isIdLoaded && response != null) {
-                val current = mNotificationProps.asBundle()
-                if (!current.containsKey("server_url")) {
-                    response.putString("server_url", serverUrl)
+            if (isIdLoaded && isOnline) {
+                val response = withContext(PushNotificationDispatcher.network) {
+                    pushTrace.measure("ack") {
+                        ReceiptDelivery.send(ackId, serverUrl, postId, type, true)
+                    }
+                }
+                response?.let { applyAckResponse(serverUrl, it) }
+            } else {
+                launch(PushNotificationDispatcher.database) {
+                    pushTrace.measure("ack") {
+                        ReceiptDelivery.enqueue(mContext, ackId, serverUrl, postId, type)
+                    }
                 }
-                current.putAll(response)
-                mNotificationProps = createProps(current)
             }
         }
 
-        if (!CustomPushNotificationHelper.verifySignature(mContext, signature, serverUrl, ackId)) {
+        val notificationChannelId = channelId ?: mNotificationProps.asBundle().getString("channel_id")
+        val isReactInit = mAppLifecycleFacade.isReactInitialized()
+        val needsData = type == CustomPushNotificationHelper.PUSH_TYPE_MESSAGE && serverUrl != null && notificationChannelId != null && shouldPostNotification()
+        val dataFetch = if (needsData && isOnline) {
+            val notificationBundle = mNotificationProps.asBundle()
+            async { dataHelper.fetchAndStoreDataForPushNotification(notificationBundle, isReactInit, pushTrace, pushDeadline) }
+        } else {
+            null
+        }
+
+        if (needsData && !isOnline) {
+            Log.i("ReactNative", "Offline, deferring the sync of channel $notificationChannelId")
+            PushNotificationTracer.increment("offline")
+            loadAvatars = false
+            val notificationBundle = mNotificationProps.asBundle()
+            launch(PushNotificationDispatcher.database) {
+                deferSync(serverUrl!!, notificationChannelId!!, notificationBundle)
+            }
+        }
+
+        if (!verification.await()) {
             Log.i("Mattermost Notifications Signature verification", "Notification skipped because we could not verify it.")
-            return
+            dataFetch?.cancel()
+            return@coroutineScope
+        }
+
+        finishProcessingNotification(type, notificationChannelId, notificationId, isReactInit, dataFetch, pushTrace)
+
+        // Stages skipped to post the notification on time are completed in the background,
+        // data still being fetched when the notification was posted is saved when the fetch finishes
+        dataFetch?.join()
+        val skipped = pushDeadline.skippedStages()
+        if (serverUrl != null && skipped.isNotEmpty()) {
+            PushNotificationDataWorker.enqueue(mContext, mNotificationProps.asBundle(), skipped)
         }
+    }
+
+    companion object {
+        private const val MAX_PROCESSED_PUSHES_PER_SERVER = 500
 
-        finishProcessingNotification(serverUrl, type, channelId, notificationId)
+        // Keys of the pushes being processed by this process, a redelivery after the process is killed takes them over
+        private val inProgressKeys = HashSet<String>()
     }
 
     override fun onOpened() {
@@ -98,32 +191,27 @@ class CustomPushNotification(
         }
     }
 
-    private suspend fun finishProcessingNotification(serverUrl: String?, type: String?, channelId: String?, notificationId: Int) {
-        val isReactInit = mAppLifecycleFacade.isReactInitialized()
-
+    private suspend fun finishProcessingNotification(type: String?, channelId: String?, notificationId: Int, isReactInit: Boolean, dataFetch: Deferred<Bundle?>?, pushTrace: PushNotificationTracer.Trace) {
         when (type) {
             CustomPushNotificationHelper.PUSH_TYPE_MESSAGE, CustomPushNotificationHelper.PUSH_TYPE_SESSION -> {
-                val currentActivityName = mAppLifecycleFacade.runningReactContext?.currentActivity?.componentName?.className ?: ""
-                Log.i("ReactNative", currentActivityName)
-                if (!mAppLifecycleFacade.isAppVisible() || currentActivityName != "MainActivity") {
-                    var createSummary = type == CustomPushNotificationHelper.PUSH_TYPE_MESSAGE
-                    if (type == CustomPushNotificationHelper.PUSH_TYPE_MESSAGE) {
-                        channelId?.let {
-                            val notificationBundle = mNotificationProps.asBundle()
-                            serverUrl?.let {
-                                val notificationResult = dataHelper.fetchAndStoreDataForPushNotification(notificationBundle, isReactInit)
-                                notificationResult?.let { result ->
-                                    notificationBundle.putBundle("data", result)
-                                    mNotificationProps = createProps(notificationBundle)
-                                }
-                            }
-                            createSummary = NotificationHelper.addNotificationToPreferences(mContext, notificationId, notificationBundle)
+                if (shouldPostNotification()) {
+                    // Message notifications are posted from the push payload and updated once the data is fetched
+                    if (type == CustomPushNotificationHelper.PUSH_TYPE_MESSAGE && channelId != null && dataFetch != null) {
+                        renderFirstAndEnrich(notificationId, dataFetch, pushTrace)
+                    } else {
+                        var createSummary = type == CustomPushNotificationHelper.PUSH_TYPE_MESSAGE
+                        if (type == CustomPushNotificationHelper.PUSH_TYPE_MESSAGE && channelId != null) {
+                            createSummary = addNotificationToPreferences(notificationId, mNotificationProps.asBundle())
+                        }
+                        pushTrace.measure("notification_post") {
+                            postNotification(notificationId, createSummary)
                         }
                     }
-                    buildNotification(notificationId, createSummary)
                 }
             }
-            CustomPushNotificationHelper.PUSH_TYPE_CLEAR -> NotificationHelper.clearChannelOrThreadNotifications(mContext, mNotificationProps.asBundle())
+            CustomPushNotificationHelper.PUSH_TYPE_CLEAR -> {
+                PushNotificationClearBatcher.clear(mContext, mNotificationProps.asBundle())
+            }
         }
 
         if (isReactInit) {
@@ -131,6 +219,193 @@ class CustomPushNotification(
         }
     }
 
+    private suspend fun renderFirstAndEnrich(notificationId: Int, dataFetch: Deferred<Bundle?>, pushTrace: PushNotificationTracer.Trace) {
+        // Post the notification from the push payload right away with the avatars that are already cached,
+        // the avatars that need the network are left for the update
+        val createSummary = addNotificationToPreferences(notificationId, mNotificationProps.asBundle())
+        loadAvatars = false
+        pushTrace.measure("notification_post") {
+            postNotification(notificationId, createSummary)
+        }
+
+        val result = pushTrace.measure("data") { dataFetch.await() }
+        result?.let {
+            val notificationBundle = mNotificationProps.asBundle()
+            notificationBundle.putBundle("changes", it)
+            mNotificationProps = createProps(notificationBundle)
+        }
+
+        // The update only adds the missing avatars, Android rate limits notification updates so it is skipped when nothing would change
+        val needsAvatars = withContext(PushNotificationDispatcher.network) {
+            CustomPushNotificationHelper.hasUncachedAvatars(mContext, mNotificationProps.asBundle())
+        }
+        if (!needsAvatars) {
+            return
+        }
+
+        // Update the notification in place, unless it was dismissed or opened in the meantime
+        val isActive = NotificationHelper.getDeliveredNotifications(mContext).any { it.id == notificationId }
+        if (isActive) {
+            loadAvatars = true
+            isUpdate = true
+            pushTrace.measure("notification_update") {
+                postNotification(notificationId, false)
+            }
+        }
+    }
+
+    // Pushes taken out of a full queue are still acked and posted from the push payload, without fetching any data
+    private suspend fun handleOverflowedPush(
+            serverUrl: String?,
+            type: String?,
+            ackId: String?,
+            isIdLoaded: Boolean,
+            notificationId: Int,
+            postId: String?,
+            signature: String?
+    ) {
+        processOnce(serverUrl, ackId, postId) {
+            postOverflowedPush(serverUrl, type, ackId, isIdLoaded, notificationId, postId, signature)
+        }
+    }
+
+    private suspend fun postOverflowedPush(
+            serverUrl: String?,
+            type: String?,
+            ackId: String?,
+            isIdLoaded: Boolean,
+            notificationId: Int,
+            postId: String?,
+            signature: String?
+    ) {
+        try {
+            PushNotificationTracer.increment("overflowed")
+            if (ackId != null && serverUrl != null) {
+                if (isIdLoaded) {
+                    // The notification content is only available in the ack response
+                    val response = withContext(PushNotificationDispatcher.network) {
+                        ReceiptDelivery.send(ackId, serverUrl, postId, type, true)
+                    }
+                    response?.let { applyAckResponse(serverUrl, it) }
+                } else {
+                    withContext(PushNotificationDispatcher.database) {
+                        ReceiptDelivery.enqueue(mContext, ackId, serverUrl, postId, type)
+                    }
+                }
+            }
+
+            val verified = withContext(PushNotificationDispatcher.database) {
+                CustomPushNotificationHelper.verifySignature(mContext, signature, serverUrl, ackId)
+            }
+            if (!verified || type != CustomPushNotificationHelper.PUSH_TYPE_MESSAGE || !shouldPostNotification()) {
+                return
+            }
+
+            loadAvatars = false
+            val createSummary = addNotificationToPreferences(notificationId, mNotificationProps.asBundle())
+            postNotification(notificationId, createSummary)
+        } catch (e: Exception) {
+            e.printStackTrace()
+        }
+    }
+
+    private fun applyAckResponse(serverUrl: String, response: Bundle) {
+        val current = mNotificationProps.asBundle()
+        if (!current.containsKey("server_url")) {
+            response.putString("server_url", serverUrl)
+        }
+        current.putAll(response)
+        mNotificationProps = createProps(current)
+    }
+
+    // FCM redeliveries and proxy retries can deliver the same push more than once, the push is only recorded
+    // as processed once its notification was posted and its ack queued, so that a push interrupted by the process
+    // being killed is processed again when redelivered
+    private suspend fun processOnce(serverUrl: String?, ackId: String?, postId: String?, block: suspend () -> Unit) {
+        if (serverUrl == null) {
+            block()
+            return
+        }
+
+        val keys = ArrayList<String>()
+        ackId?.let { keys.add("ack:$it") }
+        postId?.let { keys.add("post:$it") }
+        val inProgress = keys.map { "$serverUrl-$it" }
+        val claimed = synchronized(inProgressKeys) {
+            if (inProgress.any { inProgressKeys.contains(it) }) {
+                false
+            } else {
+                inProgressKeys.addAll(inProgress)
+                true
+            }
+        }
+
+        if (!claimed || isProcessed(serverUrl, keys)) {
+            Log.i("ReactNative", "Dropping duplicate push notification ack=$ackId post=$postId")
+            PushNotificationTracer.increment("duplicates")
+            if (claimed) {
+                synchronized(inProgressKeys) { inProgressKeys.removeAll(inProgress.toSet()) }
+            }
+            return
+        }
+
+        try {
+            block()
+            withContext(PushNotificationDispatcher.database) {
+                PushNotificationStore.getInstance(mContext).markProcessed(serverUrl, keys, MAX_PROCESSED_PUSHES_PER_SERVER)
+            }
+        } finally {
+            synchronized(inProgressKeys) { inProgressKeys.removeAll(inProgress.toSet()) }
+        }
+    }
+
+    private suspend fun isProcessed(serverUrl: String, keys: List<String>): Boolean {
+        return try {
+            withContext(PushNotificationDispatcher.database) {
+                PushNotificationStore.getInstance(mContext).isProcessed(serverUrl, keys)
+            }
+        } catch (e: Exception) {
+            e.printStackTrace()
+            false
+        }
+    }
+
+    private fun deferSync(serverUrl: String, channelId: String, notificationBundle: Bundle) {
+        try {
+            PushNotificationStore.getInstance(mContext).insertDeferredSync(
+                    serverUrl,
+                    channelId,
+                    notificationBundle.getString("root_id"),
+                    notificationBundle.getString("team_id"),
+                    notificationBundle.getString("post_id"),
+                    notificationBundle.getString("is_crt_enabled") == "true",
+                    System.currentTimeMillis()
+            )
+            DeferredSyncWorker.enqueue(mContext)
+        } catch (e: Exception) {
+            e.printStackTrace()
+        }
+    }
+
+    private fun shouldPostNotification(): Boolean {
+        val currentActivityName = mAppLifecycleFacade.runningReactContext?.currentActivity?.componentName?.className ?: ""
+        Log.i("ReactNative", currentActivityName)
+        return !mAppLifecycleFacade.isAppVisible() || currentActivityName != "MainActivity"
+    }
+
+    // A clear for the channel still waiting in its batch was received before this notification and must not cancel it
+    private fun addNotificationToPreferences(notificationId: Int, notificationBundle: Bundle): Boolean {
+        notificationBundle.getString("channel_id")?.let { PushNotificationClearBatcher.flushFor(mContext, it) }
+        return NotificationHelper.addNotificationToPreferences(mContext, notificationId, notificationBundle)
+    }
+
+    // Building the notification can load avatars over the network, so it runs on the network lane
+    private suspend fun postNotification(notificationId: Int, createSummary: Boolean) {
+        withContext(PushNotificationDispatcher.network) {
+            buildNotification(notificationId, createSummary)
+        }
+    }
+
     private fun buildNotification(notificationId: Int, createSummary: Boolean) {
         val pendingIntent = NotificationIntentAdapter.createPendingNotificationIntent(mContext, mNotificationProps)
         val notification = buildNotification(pendingIntent)
@@ -143,16 +418,21 @@ class CustomPushNotification(
 
     override fun getNotificationBuilder(intent: PendingIntent): NotificationCompat.Builder {
         val bundle = mNotificationProps.asBundle()
-        return CustomPushNotificationHelper.createNotificationBuilder(mContext, intent, bundle, false)
+        val builder = CustomPushNotificationHelper.createNotificationBuilder(mContext, intent, bundle, false, trace, deadline, loadAvatars)
+        if (isUpdate) {
+            builder.setOnlyAlertOnce(true)
+        }
+        return builder
     }
 
     private fun getNotificationSummaryBuilder(intent: PendingIntent): NotificationCompat.Builder {
         val bundle = mNotificationProps.asBundle()
-        return CustomPushNotificationHelper.createNotificationBuilder(mContext, intent, bundle, true)
+        return CustomPushNotificationHelper.createNotificationBuilder(mContext, intent, bundle, true, trace, deadline, loadAvatars)
     }
 
+    // Batched with the other notifications received in the same interval, the fetched data is sent on demand
     private fun notifyReceivedToJS() {
-        mJsIOHelper.sendEventToJS(NOTIFICATION_RECEIVED_EVENT_NAME, mNotificationProps.asBundle(), mAppLifecycleFacade.runningReactContext)
+        PushNotificationEvents.enqueue(mNotificationProps.asBundle())
     }
 
     private fun addServerUrlToBundle(bundle: Bundle): String? {
@@ -0,0 +1,101 @@
+package com.mattermost.rnbeta
+
+import android.content.Context
+import android.os.Bundle
+import android.util.Log
+import androidx.work.BackoffPolicy
+import androidx.work.Constraints
+import androidx.work.CoroutineWorker
+import androidx.work.ExistingWorkPolicy
+import androidx.work.NetworkType
+import androidx.work.OneTimeWorkRequest
+import androidx.work.WorkManager
+import androidx.work.WorkerParameters
+import com.mattermost.helpers.DeferredSync
+import com.mattermost.helpers.PushNotificationDataRunnable
+import com.mattermost.helpers.PushNotificationDispatcher
+import com.mattermost.helpers.PushNotificationRuntime
+import com.mattermost.helpers.PushNotificationStore
+import com.wix.reactnativenotifications.core.AppLifecycleFacadeHolder
+import java.util.concurrent.TimeUnit
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+
+/**
+ * Syncs the channels and threads of the pushes received while offline once the device is back online,
+ * pushes for the same channel or thread are recorded once so each one is fetched a single time.
+ */
+class DeferredSyncWorker(context: Context, workerParameters: WorkerParameters) : CoroutineWorker(context, workerParameters) {
+    override suspend fun doWork(): Result {
+        val store = PushNotificationStore.getInstance(applicationContext)
+        val expired = store.deleteExpiredDeferredSyncs(System.currentTimeMillis() - MAX_AGE_MS)
+        if (expired > 0) {
+            Log.w("ReactNative", "Dropped $expired deferred syncs that could not be completed")
+        }
+
+        val syncs = store.getDeferredSyncs()
+        if (syncs.isEmpty()) {
+            return Result.success()
+        }
+
+        // Once the app is running it syncs the data on its own
+        if (AppLifecycleFacadeHolder.get().isReactInitialized()) {
+            syncs.forEach { store.deleteDeferredSync(it) }
+            return Result.success()
+        }
+
+        PushNotificationRuntime.ensureInitialized(applicationContext)
+
+        val results = coroutineScope {
+            syncs.map { sync ->
+                async(PushNotificationDispatcher.network) { replay(store, sync) }
+            }.awaitAll()
+        }
+
+        val failed = results.count { !it }
+        Log.i("ReactNative", "Synced ${syncs.size - failed} deferred channels and threads, failed=$failed")
+        return if (failed > 0) Result.retry() else Result.success()
+    }
+
+    private suspend fun replay(store: PushNotificationStore, sync: DeferredSync): Boolean {
+        val bundle = Bundle()
+        bundle.putString("server_url", sync.serverUrl)
+        bundle.putString("channel_id", sync.channelId)
+        bundle.putString("is_crt_enabled", sync.isCRTEnabled.toString())
+        sync.teamId?.let { bundle.putString("team_id", it) }
+        sync.postId?.let { bundle.putString("post_id", it) }
+        if (sync.rootId.isNotEmpty()) {
+            bundle.putString("root_id", sync.rootId)
+        }
+
+        return try {
+            PushNotificationDataRunnable.start(applicationContext, bundle, false) ?: return false
+            store.deleteDeferredSync(sync)
+            true
+        } catch (e: Exception) {
+            e.printStackTrace()
+            false
+        }
+    }
+
+    companion object {
+        private const val WORK_NAME = "deferred-sync"
+        private val MAX_AGE_MS = TimeUnit.DAYS.toMillis(1)
+
+        @JvmStatic
+        fun enqueue(context: Context) {
+            val constraints = Constraints.Builder()
+                    .setRequiredNetworkType(NetworkType.CONNECTED)
+                    .build()
+            val request = OneTimeWorkRequest.Builder(DeferredSyncWorker::class.java)
+                    .setConstraints(constraints)
+                    .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 30, TimeUnit.SECONDS)
+                    .build()
+
+            // Appended to the pending work so that syncs recorded after its last read are replayed as well,
+            // the appended work finishes right away when there is nothing left to sync
+            WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.APPEND_OR_REPLACE, request)
+        }
+    }
+}
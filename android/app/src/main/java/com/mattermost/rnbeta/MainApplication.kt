@@ -2,9 +2,12 @@ package com.mattermost.rnbeta
 
 
 import android.annotation.SuppressLint
+import android.app.Activity
+import android.app.ActivityManager
 import android.content.Context
 import android.content.res.Configuration
 import android.os.Bundle
+import android.os.SystemClock
 import android.util.Log
 import com.facebook.react.PackageList
 import com.facebook.react.ReactHost
@@ -18,7 +21,10 @@ import com.facebook.react.defaults.DefaultReactHost.getDefaultReactHost
 import com.facebook.react.defaults.DefaultReactNativeHost
 import com.facebook.react.modules.network.OkHttpClientProvider
 import com.facebook.soloader.SoLoader
+import com.mattermost.helpers.CustomPushNotificationHelper
+import com.mattermost.helpers.PushNotificationJournal
 import com.mattermost.networkclient.RCTOkHttpClientFactory
+import com.mattermost.rnutils.helpers.PushNotificationTracer
 import com.mattermost.rnshare.helpers.RealPathUtil
 import com.nozbe.watermelondb.jsi.JSIInstaller
 import com.reactnativenavigation.NavigationApplication
@@ -35,6 +41,29 @@ import java.io.File
 
 class MainApplication : NavigationApplication(), INotificationsApplication {
     private var listenerAdded = false
+    private var reactInitialized = false
+
+    private val deferredReactInitializer = object : ActivityLifecycleCallbacks {
+        override fun onActivityPreCreated(activity: Activity, savedInstanceState: Bundle?) {
+            initializeDeferred()
+        }
+
+        override fun onActivityCreated(activity: Activity, savedInstanceState: Bundle?) {
+            initializeDeferred()
+        }
+
+        override fun onActivityStarted(activity: Activity) {}
+        override fun onActivityResumed(activity: Activity) {}
+        override fun onActivityPaused(activity: Activity) {}
+        override fun onActivityStopped(activity: Activity) {}
+        override fun onActivitySaveInstanceState(activity: Activity, outState: Bundle) {}
+        override fun onActivityDestroyed(activity: Activity) {}
+
+        private fun initializeDeferred() {
+            unregisterActivityLifecycleCallbacks(this)
+            initializeReactNative()
+        }
+    }
 
     override val reactNativeHost: ReactNativeHost =
         ReactNativeHostWrapper(this,
@@ -58,23 +87,50 @@ class MainApplication : NavigationApplication(), INotificationsApplication {
         get() = getDefaultReactHost(applicationContext, reactNativeHost)
 
     override fun onCreate() {
+        val start = SystemClock.elapsedRealtime()
         super.onCreate()
+        CustomPushNotificationHelper.warmUpSignatureVerification()
+
+        // When the process is started to handle a push notification only what the push notification
+        // handling needs is initialized, React Native and Expo are initialized once an Activity is created.
+        // Processes started for a foreground service or a bound service are not foreground yet either
+        // and take the same deferred path
+        if (isStartedInBackground()) {
+            Log.i("ReactNative", "Process started in the background, deferring React Native initialization")
+            PushNotificationTracer.increment("startup.background")
+            registerActivityLifecycleCallbacks(deferredReactInitializer)
+
+            // Resume the push notifications that were interrupted when the process was killed,
+            // when the app is opened it syncs the data on its own
+            PushNotificationJournal.resumeInterrupted(this)
+        } else {
+            initializeReactNative()
+        }
+
+        val duration = SystemClock.elapsedRealtime() - start
+        PushNotificationTracer.record("app_create", duration)
+        Log.i("ReactNative", "Application created in ${duration}ms")
+    }
+
+    private fun initializeReactNative() {
+        if (reactInitialized) {
+            return
+        }
+        reactInitialized = true
+        val start = SystemClock.elapsedRealtime()
 
         // Delete any previous temp files created by the app
         val tempFolder = File(applicationContext.cacheDir, RealPathUtil.CACHE_DIR_NAME)
         RealPathUtil.deleteTempFiles(tempFolder)
         Log.i("ReactNative", "Cleaning temp cache " + tempFolder.absolutePath)
 
-        // Tells React Native to use our RCTOkHttpClientFactory which builds an OKHttpClient
-        // with a cookie jar defined in APIClientModule and an interceptor to intercept all
-        // requests that originate from React Native's OKHttpClient
-
         // Tells React Native to use our RCTOkHttpClientFactory which builds an OKHttpClient
         // with a cookie jar defined in APIClientModule and an interceptor to intercept all
         // requests that originate from React Native's OKHttpClient
         OkHttpClientProvider.setOkHttpClientFactory(RCTOkHttpClientFactory())
         ExpoImageOkHttpClientGlideModule.okHttpClient = RCTOkHttpClientFactory().createNewNetworkModuleClient()
 
+        // SoLoader was already initialized by NavigationApplication.onCreate, deferring it saves nothing
         SoLoader.init(this, false)
         if (BuildConfig.IS_NEW_ARCHITECTURE_ENABLED) {
             // If you opted-in for the New Architecture, we load the native entry point for this app.
@@ -82,11 +138,23 @@ class MainApplication : NavigationApplication(), INotificationsApplication {
         }
         ApplicationLifecycleDispatcher.onApplicationCreate(this)
         registerJSIModules()
+
+        val duration = SystemClock.elapsedRealtime() - start
+        PushNotificationTracer.record("react_init", duration)
+        Log.i("ReactNative", "React Native initialized in ${duration}ms")
     }
 
     override fun onConfigurationChanged(newConfig: Configuration) {
         super.onConfigurationChanged(newConfig)
-        ApplicationLifecycleDispatcher.onConfigurationChanged(this, newConfig)
+        if (reactInitialized) {
+            ApplicationLifecycleDispatcher.onConfigurationChanged(this, newConfig)
+        }
+    }
+
+    private fun isStartedInBackground(): Boolean {
+        val processInfo = ActivityManager.RunningAppProcessInfo()
+        ActivityManager.getMyMemoryState(processInfo)
+        return processInfo.importance != ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND
     }
 
     override fun getPushNotification(
@@ -0,0 +1,83 @@
+package com.mattermost.rnbeta
+
+import android.content.Context
+import android.os.Bundle
+import android.util.Log
+import androidx.work.Constraints
+import androidx.work.CoroutineWorker
+import androidx.work.Data
+import androidx.work.ExistingWorkPolicy
+import androidx.work.NetworkType
+import androidx.work.OneTimeWorkRequest
+import androidx.work.WorkManager
+import androidx.work.WorkerParameters
+import com.mattermost.helpers.CustomPushNotificationHelper
+import com.mattermost.helpers.PushNotificationDataRunnable
+import com.mattermost.helpers.PushNotificationDispatcher
+import com.mattermost.helpers.PushNotificationRuntime
+import com.wix.reactnativenotifications.core.AppLifecycleFacadeHolder
+import kotlinx.coroutines.withContext
+
+/**
+ * Completes the push notification stages that were skipped to post the notification within its time budget,
+ * the notification data is fetched again without a deadline and the sender avatar is loaded into the bitmap cache.
+ */
+class PushNotificationDataWorker(context: Context, workerParameters: WorkerParameters) : CoroutineWorker(context, workerParameters) {
+    override suspend fun doWork(): Result {
+        val serverUrl = inputData.getString("server_url") ?: return Result.success()
+        val skipped = inputData.getStringArray(SKIPPED_KEY)?.toSet() ?: emptySet()
+
+        PushNotificationRuntime.ensureInitialized(applicationContext)
+
+        // Once the app is running it syncs the data on its own
+        val isReactInit = AppLifecycleFacadeHolder.get().isReactInitialized()
+        if (!isReactInit && (skipped.contains("categories") || skipped.contains("users"))) {
+            val bundle = Bundle()
+            for (key in BUNDLE_KEYS) {
+                inputData.getString(key)?.let { bundle.putString(key, it) }
+            }
+            withContext(PushNotificationDispatcher.network) {
+                PushNotificationDataRunnable.start(applicationContext, bundle, false)
+            }
+        }
+
+        val senderId = inputData.getString("sender_id")
+        if (skipped.contains("avatar") && senderId != null && inputData.getString("override_icon_url").isNullOrEmpty()) {
+            withContext(PushNotificationDispatcher.network) {
+                CustomPushNotificationHelper.preloadUserAvatar(applicationContext, serverUrl, senderId)
+            }
+        }
+
+        Log.i("ReactNative", "Completed skipped push notification stages $skipped for server=$serverUrl")
+        return Result.success()
+    }
+
+    companion object {
+        private const val SKIPPED_KEY = "skipped_stages"
+        private val BUNDLE_KEYS = arrayOf(
+                "server_url", "channel_id", "team_id", "post_id", "root_id",
+                "is_crt_enabled", "ack_id", "sender_id", "override_icon_url"
+        )
+
+        @JvmStatic
+        fun enqueue(context: Context, bundle: Bundle, skipped: Set<String>) {
+            val data = Data.Builder()
+            for (key in BUNDLE_KEYS) {
+                bundle.getString(key)?.let { data.putString(key, it) }
+            }
+            data.putStringArray(SKIPPED_KEY, skipped.toTypedArray())
+
+            val constraints = Constraints.Builder()
+                    .setRequiredNetworkType(NetworkType.CONNECTED)
+                    .build()
+            val request = OneTimeWorkRequest.Builder(PushNotificationDataWorker::class.java)
+                    .setConstraints(constraints)
+                    .setInputData(data.build())
+                    .build()
+
+            // A pending job for the same channel already fetches everything received since the last sync
+            val workName = "push-data-${bundle.getString("server_url")}-${bundle.getString("channel_id")}"
+            WorkManager.getInstance(context).enqueueUniqueWork(workName, ExistingWorkPolicy.KEEP, request)
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.mattermost.rnbeta
+
+import android.content.Context
+import android.util.Log
+import androidx.core.app.NotificationCompat
+import androidx.work.BackoffPolicy
+import androidx.work.CoroutineWorker
+import androidx.work.ExistingWorkPolicy
+import androidx.work.ForegroundInfo
+import androidx.work.OneTimeWorkRequest
+import androidx.work.OutOfQuotaPolicy
+import androidx.work.WorkManager
+import androidx.work.WorkerParameters
+import com.mattermost.helpers.CustomPushNotificationHelper
+import com.mattermost.helpers.PushNotificationDataRunnable
+import com.mattermost.helpers.PushNotificationRuntime
+import com.mattermost.helpers.PushNotificationStore
+import com.wix.reactnativenotifications.core.AppLifecycleFacadeHolder
+import java.util.concurrent.TimeUnit
+
+/**
+ * Saves the notification data fetched by the push notifications into the server databases,
+ * the pending data of each server is merged and saved in a single transaction.
+ */
+class PushNotificationSyncWorker(context: Context, workerParameters: WorkerParameters) : CoroutineWorker(context, workerParameters) {
+    override suspend fun doWork(): Result {
+        val store = PushNotificationStore.getInstance(applicationContext)
+        val expired = store.deleteExpiredSyncs(System.currentTimeMillis() - MAX_AGE_MS)
+        if (expired > 0) {
+            Log.w("ReactNative", "Dropped $expired pending notification syncs that could not be saved")
+        }
+
+        PushNotificationRuntime.ensureInitialized(applicationContext)
+
+        var lastId = 0L
+        var saved = 0
+        var failed = false
+        while (true) {
+            // Once the app is running it syncs the data on its own, saving behind it could roll back what it synced
+            if (AppLifecycleFacadeHolder.get().isReactInitialized()) {
+                val dropped = store.deleteAllPendingSyncs()
+                Log.i("ReactNative", "Dropped $dropped pending notification syncs, the app is running")
+                break
+            }
+
+            val batch = store.getPendingSyncs(lastId, BATCH_SIZE)
+            if (batch.isEmpty()) {
+                break
+            }
+            lastId = batch.last().id
+
+            for ((serverUrl, items) in batch.groupBy { it.serverUrl }) {
+                try {
+                    PushNotificationDataRunnable.saveAll(applicationContext, serverUrl, items)
+                    store.deletePendingSyncs(items.map { it.id })
+                    saved += items.size
+                } catch (e: Exception) {
+                    e.printStackTrace()
+                    failed = true
+                }
+            }
+        }
+
+        Log.i("ReactNative", "Saved $saved pending notification syncs, retry=$failed")
+        return if (failed) Result.retry() else Result.success()
+    }
+
+    // Expedited work runs as a foreground service before Android 12
+    override suspend fun getForegroundInfo(): ForegroundInfo {
+        CustomPushNotificationHelper.createNotificationChannels(applicationContext)
+        val notification = NotificationCompat.Builder(applicationContext, CustomPushNotificationHelper.CHANNEL_MIN_IMPORTANCE_ID)
+                .setSmallIcon(R.mipmap.ic_notification)
+                .setContentTitle("Syncing messages")
+                .setPriority(NotificationCompat.PRIORITY_MIN)
+                .setOngoing(true)
+                .build()
+        return ForegroundInfo(NOTIFICATION_ID, notification)
+    }
+
+    companion object {
+        private const val WORK_NAME = "push-notification-sync"
+        private const val NOTIFICATION_ID = 0x5379
+        private const val BATCH_SIZE = 50
+        private val MAX_AGE_MS = TimeUnit.DAYS.toMillis(1)
+
+        @JvmStatic
+        fun enqueue(context: Context) {
+            val request = OneTimeWorkRequest.Builder(PushNotificationSyncWorker::class.java)
+                    .setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
+                    .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 10, TimeUnit.SECONDS)
+                    .build()
+
+            // Appended to the running work so that data persisted after its last read is saved as well,
+            // the appended work finishes right away when the running one already saved everything
+            WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.APPEND_OR_REPLACE, request)
+        }
+    }
+}
@@ -1,9 +1,9 @@
 package com.mattermost.rnbeta;
 
+import android.content.Context;
 import android.os.Bundle;
 import android.util.Log;
 
-import java.lang.System;
 import java.util.Objects;
 
 import org.json.JSONObject;
@@ -20,27 +20,53 @@ public class ReceiptDelivery {
 
     public static Bundle send(final String ackId, final String serverUrl, final String postId, final String type, final boolean isIdLoaded) {
         Log.i("ReactNative", String.format("Send receipt delivery ACK=%s TYPE=%s to URL=%s with ID-LOADED=%s", ackId, type, serverUrl, isIdLoaded));
+        try (Response response = post(ackId, serverUrl, postId, type, System.currentTimeMillis(), isIdLoaded)) {
+            String responseBody = Objects.requireNonNull(response.body()).string();
+            JSONObject jsonResponse = new JSONObject(responseBody);
+            return parseAckResponse(jsonResponse);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static void enqueue(final Context context, final String ackId, final String serverUrl, final String postId, final String type) {
+        Log.i("ReactNative", String.format("Queue receipt delivery ACK=%s TYPE=%s to URL=%s", ackId, type, serverUrl));
+        try {
+            PushNotificationStore.getInstance(context).insertAck(ackId, serverUrl, postId, type, System.currentTimeMillis());
+            ReceiptDeliveryWorker.enqueue(context);
+        } catch (Exception e) {
+            Log.w("ReactNative", String.format("Could not queue receipt delivery ACK=%s, sending it now", ackId));
+            e.printStackTrace();
+            send(ackId, serverUrl, postId, type, false);
+        }
+    }
+
+    public static boolean deliver(final String ackId, final String serverUrl, final String postId, final String type, final long receivedAt) {
+        try (Response response = post(ackId, serverUrl, postId, type, receivedAt, false)) {
+            // Client errors will not succeed on retry, consider the receipt as handled
+            return response.code() < 500;
+        } catch (Exception e) {
+            Log.w("ReactNative", String.format("Receipt delivery ACK=%s to URL=%s failed: %s", ackId, serverUrl, e.getMessage()));
+            return false;
+        }
+    }
+
+    private static Response post(final String ackId, final String serverUrl, final String postId, final String type, final long receivedAt, final boolean isIdLoaded) {
         WritableMap options = Arguments.createMap();
         WritableMap headers = Arguments.createMap();
         WritableMap body = Arguments.createMap();
         headers.putString("Content-Type", "application/json");
         options.putMap("headers", headers);
         body.putString("id", ackId);
-        body.putDouble("received_at", System.currentTimeMillis());
+        body.putDouble("received_at", receivedAt);
         body.putString("platform", "android");
         body.putString("type", type);
         body.putString("post_id", postId);
         body.putBoolean("is_id_loaded", isIdLoaded);
         options.putMap("body", body);
 
-        try (Response response = Network.postSync(serverUrl, "api/v4/notifications/ack", options)) {
-            String responseBody = Objects.requireNonNull(response.body()).string();
-            JSONObject jsonResponse = new JSONObject(responseBody);
-            return parseAckResponse(jsonResponse);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+        return Network.postSync(serverUrl, "api/v4/notifications/ack", options);
     }
 
     public static Bundle parseAckResponse(JSONObject jsonResponse) {
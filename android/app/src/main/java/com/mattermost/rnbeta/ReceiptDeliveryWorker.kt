@@ -0,0 +1,87 @@
+package com.mattermost.rnbeta
+
+import android.content.Context
+import android.util.Log
+import androidx.work.BackoffPolicy
+import androidx.work.Constraints
+import androidx.work.CoroutineWorker
+import androidx.work.ExistingWorkPolicy
+import androidx.work.NetworkType
+import androidx.work.OneTimeWorkRequest
+import androidx.work.WorkManager
+import androidx.work.WorkerParameters
+import com.mattermost.helpers.PushNotificationDispatcher
+import com.mattermost.helpers.PushNotificationRuntime
+import com.mattermost.helpers.PushNotificationStore
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import java.util.concurrent.TimeUnit
+
+/**
+ * Flushes the notification receipts persisted in the ack outbox, acks that fail to be delivered
+ * are kept and retried with an exponential backoff.
+ */
+class ReceiptDeliveryWorker(context: Context, workerParameters: WorkerParameters) : CoroutineWorker(context, workerParameters) {
+    override suspend fun doWork(): Result {
+        val store = PushNotificationStore.getInstance(applicationContext)
+        val expired = store.deleteExpiredAcks(System.currentTimeMillis() - MAX_AGE_MS, MAX_ATTEMPTS)
+        if (expired > 0) {
+            Log.w("ReactNative", "Dropped $expired notification receipts that could not be delivered")
+        }
+
+        PushNotificationRuntime.ensureInitialized(applicationContext)
+
+        val attempted = HashSet<String>()
+        var failed = false
+        while (true) {
+            val batch = store.getPendingAcks(BATCH_SIZE + attempted.size).filter { !attempted.contains(it.ackId) }
+            if (batch.isEmpty()) {
+                break
+            }
+
+            val results = coroutineScope {
+                batch.map { ack ->
+                    async(PushNotificationDispatcher.network) {
+                        ack to ReceiptDelivery.deliver(ack.ackId, ack.serverUrl, ack.postId, ack.type, ack.receivedAt)
+                    }
+                }.awaitAll()
+            }
+
+            for ((ack, delivered) in results) {
+                attempted.add(ack.ackId)
+                if (delivered) {
+                    store.deleteAck(ack.ackId)
+                } else {
+                    failed = true
+                    store.incrementAckAttempts(ack.ackId)
+                }
+            }
+        }
+
+        Log.i("ReactNative", "Flushed ${attempted.size} notification receipts, retry=$failed")
+        return if (failed) Result.retry() else Result.success()
+    }
+
+    companion object {
+        private const val WORK_NAME = "receipt-delivery"
+        private const val BATCH_SIZE = 25
+        private const val MAX_ATTEMPTS = 10
+        private val MAX_AGE_MS = TimeUnit.DAYS.toMillis(1)
+
+        @JvmStatic
+        fun enqueue(context: Context) {
+            val constraints = Constraints.Builder()
+                    .setRequiredNetworkType(NetworkType.CONNECTED)
+                    .build()
+            val request = OneTimeWorkRequest.Builder(ReceiptDeliveryWorker::class.java)
+                    .setConstraints(constraints)
+                    .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 10, TimeUnit.SECONDS)
+                    .build()
+
+            // Appended to the pending work so that acks inserted after the last read of its flush loop are delivered as well,
+            // the appended work finishes right away when the outbox is empty
+            WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.APPEND_OR_REPLACE, request)
+        }
+    }
+}
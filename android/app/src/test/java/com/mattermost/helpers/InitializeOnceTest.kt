@@ -0,0 +1,79 @@
+package com.mattermost.helpers
+
+import java.util.Collections
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class InitializeOnceTest {
+    @Test
+    fun concurrentCallersInitializeOnce() {
+        val once = InitializeOnce()
+        val runs = AtomicInteger()
+        val callers = 16
+        val start = CyclicBarrier(callers)
+        val sawInitialized = Collections.synchronizedList(ArrayList<Boolean>())
+        val initialized = AtomicBoolean(false)
+
+        val threads = (0 until callers).map {
+            thread {
+                start.await()
+                once.run {
+                    runs.incrementAndGet()
+                    initialized.set(true)
+                    true
+                }
+                sawInitialized.add(initialized.get())
+            }
+        }
+        threads.forEach { it.join() }
+
+        assertEquals(1, runs.get())
+        // Callers arriving while the initialization runs wait for it instead of returning early
+        assertEquals(List(callers) { true }, sawInitialized)
+    }
+
+    @Test
+    fun callsAfterTheInitializationDoNotRunItAgain() {
+        val once = InitializeOnce()
+        val runs = AtomicInteger()
+
+        repeat(100) {
+            once.run { runs.incrementAndGet() > 0 }
+        }
+
+        assertEquals(1, runs.get())
+    }
+
+    @Test
+    fun failedInitializationIsRetried() {
+        val once = InitializeOnce()
+        val runs = AtomicInteger()
+
+        repeat(3) {
+            once.run { runs.incrementAndGet() > 1 }
+        }
+
+        assertEquals(2, runs.get())
+    }
+
+    @Test
+    fun initializationThatThrowsIsRetried() {
+        val once = InitializeOnce()
+        val runs = AtomicInteger()
+
+        try {
+            once.run { throw IllegalStateException("database not ready ${runs.incrementAndGet()}") }
+        } catch (e: IllegalStateException) {
+            assertTrue(e.message!!.endsWith("1"))
+        }
+        once.run { runs.incrementAndGet() > 0 }
+        once.run { runs.incrementAndGet() > 0 }
+
+        assertEquals(2, runs.get())
+    }
+}
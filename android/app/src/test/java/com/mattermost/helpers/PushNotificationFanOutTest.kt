@@ -0,0 +1,83 @@
+package com.mattermost.helpers
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class PushNotificationFanOutTest {
+    // Fake network, every request stays in flight until all the expected requests were sent
+    private class FakeFetches(private val expected: Int) : PushNotificationFetches<String, String, String, String> {
+        val requests = ArrayList<String>()
+        private val allSent = CompletableDeferred<Unit>()
+
+        private suspend fun request(endpoint: String): String {
+            synchronized(requests) {
+                requests.add(endpoint)
+                if (requests.size == expected) {
+                    allSent.complete(Unit)
+                }
+            }
+            allSent.await()
+            return endpoint
+        }
+
+        override suspend fun team(teamId: String) = request("team/$teamId")
+        override suspend fun channel(channelId: String) = request("channel/$channelId")
+        override suspend fun posts(channelId: String) = request("posts/$channelId")
+        override suspend fun thread(rootId: String) = request("thread/$rootId")
+    }
+
+    private fun fanOut(fetches: FakeFetches, teamId: String? = "team", rootId: String? = "root", isCRTEnabled: Boolean = true, done: Set<String> = emptySet()) = runBlocking {
+        // Fetching one after the other never sends all the requests and times out
+        withTimeout(5_000) {
+            coroutineScope {
+                val requests = PushNotificationFanOut.start(this, teamId, "channel", "post", rootId, isCRTEnabled, { done.contains(it) }, fetches)
+                listOf(requests.team?.await(), requests.channel?.await(), requests.posts?.await(), requests.thread?.await())
+            }
+        }
+    }
+
+    @Test
+    fun fetchesAreInFlightTogether() {
+        val fetches = FakeFetches(4)
+
+        val results = fanOut(fetches)
+
+        assertEquals(listOf("team/team", "channel/channel", "posts/channel", "thread/root"), results)
+        assertEquals(setOf("team/team", "channel/channel", "posts/channel", "thread/root"), fetches.requests.toSet())
+    }
+
+    @Test
+    fun threadIsOnlyFetchedForRepliesWithCollapsedThreads() {
+        val fetches = FakeFetches(3)
+
+        val results = fanOut(fetches, isCRTEnabled = false)
+
+        assertNull(results[3])
+        assertEquals(setOf("team/team", "channel/channel", "posts/channel"), fetches.requests.toSet())
+    }
+
+    @Test
+    fun teamIsNotFetchedWithoutTeam() {
+        val fetches = FakeFetches(2)
+
+        val results = fanOut(fetches, teamId = "", rootId = null)
+
+        assertNull(results[0])
+        assertEquals(setOf("channel/channel", "posts/channel"), fetches.requests.toSet())
+    }
+
+    @Test
+    fun stagesInTheJournalAreNotFetchedAgain() {
+        val fetches = FakeFetches(2)
+
+        val results = fanOut(fetches, done = setOf("team", "channel"))
+
+        assertEquals(listOf(null, null, "posts/channel", "thread/root"), results)
+        assertEquals(setOf("posts/channel", "thread/root"), fetches.requests.toSet())
+    }
+}
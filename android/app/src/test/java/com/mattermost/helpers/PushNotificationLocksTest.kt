@@ -0,0 +1,95 @@
+package com.mattermost.helpers
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.yield
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+
+class PushNotificationLocksTest {
+    private val serverUrl = "https://one.example.com"
+    private val otherServerUrl = "https://two.example.com"
+
+    @Test
+    fun pushesForTheSameChannelAreSerialized() = runBlocking {
+        val locks = PushNotificationLocks()
+        val release = CompletableDeferred<Unit>()
+        var secondEntered = false
+
+        val first = launch { locks.withPushLock(serverUrl, "channel") { release.await() } }
+        yield()
+        val second = launch { locks.withPushLock(serverUrl, "channel") { secondEntered = true } }
+        repeat(5) { yield() }
+
+        assertFalse(secondEntered)
+        release.complete(Unit)
+        first.join()
+        second.join()
+        assertTrue(secondEntered)
+    }
+
+    @Test
+    fun pushesForDifferentChannelsOverlap() = runBlocking {
+        assertOverlap(serverUrl to "channel", serverUrl to "other-channel")
+    }
+
+    @Test
+    fun pushesForDifferentServersOverlap() = runBlocking {
+        assertOverlap(serverUrl to "channel", otherServerUrl to "channel")
+    }
+
+    // The second push releases the first one from inside its own lock, which can only happen if both hold their lock at once
+    private suspend fun assertOverlap(first: Pair<String, String>, second: Pair<String, String>) = coroutineScope {
+        val locks = PushNotificationLocks()
+        val release = CompletableDeferred<Unit>()
+
+        val holder = launch { locks.withPushLock(first.first, first.second) { release.await() } }
+        yield()
+        withTimeout(5_000) {
+            locks.withPushLock(second.first, second.second) { release.complete(Unit) }
+            holder.join()
+        }
+    }
+
+    @Test
+    fun locksAreDroppedOnceNoPushHoldsOrWaitsForThem() = runBlocking {
+        val locks = PushNotificationLocks()
+        val release = CompletableDeferred<Unit>()
+
+        val pushes = (0 until 3).map {
+            launch { locks.withPushLock(serverUrl, "channel") { release.await() } }
+        }
+        yield()
+        assertEquals(1, locks.pushLockCount)
+
+        release.complete(Unit)
+        pushes.forEach { it.join() }
+        assertEquals(0, locks.pushLockCount)
+    }
+
+    @Test
+    fun lockIsDroppedWhenThePushFails() = runBlocking {
+        val locks = PushNotificationLocks()
+
+        try {
+            locks.withPushLock(serverUrl, "channel") { throw IllegalStateException("fetch failed") }
+            fail("the failure is rethrown")
+        } catch (e: IllegalStateException) {
+            assertEquals(0, locks.pushLockCount)
+        }
+    }
+
+    @Test
+    fun writesToTheSameServerShareTheLock() {
+        val locks = PushNotificationLocks()
+        assertSame(locks.writeLock(serverUrl), locks.writeLock(serverUrl))
+        assertTrue(locks.writeLock(serverUrl) !== locks.writeLock(otherServerUrl))
+    }
+}
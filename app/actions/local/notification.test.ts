@@ -0,0 +1,97 @@
+// Copyright (c) 2015-present Mattermost, Inc. All Rights Reserved.
+// See LICENSE.txt for license information.
+
+import {Q} from '@nozbe/watermelondb';
+
+import {MM_TABLES} from '@constants/database';
+import DatabaseManager from '@database/manager';
+import {getUserById} from '@queries/servers/user';
+import TestHelper from '@test/test_helper';
+
+import {reloadChangedRecords} from './notification';
+
+import type ServerDataOperator from '@database/operator/server_data_operator';
+import type UserModel from '@typings/database/models/servers/user';
+import type {Subscription} from 'rxjs';
+
+const {USER} = MM_TABLES.SERVER;
+
+const serverUrl = 'baseHandler.test.com';
+let operator: ServerDataOperator;
+
+type LokiDatabase = {
+    getCollection: (name: string) => {
+        findOne: (query: object) => Record<string, unknown>;
+        update: (doc: object) => void;
+    };
+};
+
+// Simulates a write done natively, outside of WatermelonDB
+const updateUsernameNatively = async (userId: string, username: string) => {
+    await operator.database.adapter.unsafeExecute({
+        loki: (loki: LokiDatabase) => {
+            const collection = loki.getCollection('User');
+            const doc = collection.findOne({id: userId});
+            doc.username = username;
+            collection.update(doc);
+        },
+    });
+};
+
+describe('reloadChangedRecords', () => {
+    beforeEach(async () => {
+        await DatabaseManager.init([serverUrl]);
+        operator = DatabaseManager.serverDatabases[serverUrl]!.operator;
+    });
+
+    afterEach(async () => {
+        await DatabaseManager.destroyServerDatabase(serverUrl);
+    });
+
+    it('handle not found database', async () => {
+        const {error} = await reloadChangedRecords('foo', {User: ['userid']});
+        expect(error).toBeDefined();
+    });
+
+    it('should refresh a cached record', async () => {
+        const user = TestHelper.fakeUser();
+        await operator.handleUsers({users: [user], prepareRecordsOnly: false});
+        const cached = await getUserById(operator.database, user.id);
+        expect(cached?.username).toBe(user.username);
+
+        await updateUsernameNatively(user.id, 'updated');
+        const {error} = await reloadChangedRecords(serverUrl, {User: [user.id]});
+        expect(error).toBeUndefined();
+
+        const reloaded = await getUserById(operator.database, user.id);
+        expect(reloaded?.username).toBe('updated');
+    });
+
+    it('should notify the observers of the table', async () => {
+        const user = TestHelper.fakeUser();
+        await operator.handleUsers({users: [user], prepareRecordsOnly: false});
+
+        const usernames: string[] = [];
+        let subscription: Subscription | undefined;
+        const notified = new Promise<void>((resolve) => {
+            subscription = operator.database.get<UserModel>(USER).query(Q.where('id', user.id)).observe().subscribe((users) => {
+                usernames.push(...users.map((u) => u.username));
+                if (users[0]?.username === 'updated') {
+                    resolve();
+                }
+            });
+        });
+
+        await updateUsernameNatively(user.id, 'updated');
+        await reloadChangedRecords(serverUrl, {User: [user.id]});
+        await notified;
+        subscription?.unsubscribe();
+
+        expect(usernames).toEqual([user.username, 'updated']);
+    });
+
+    it('should ignore unknown tables', async () => {
+        const {error} = await reloadChangedRecords(serverUrl, {Unknown: ['id']});
+        expect(error).toBeUndefined();
+    });
+});
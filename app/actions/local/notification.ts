@@ -0,0 +1,43 @@
+// Copyright (c) 2015-present Mattermost, Inc. All Rights Reserved.
+// See LICENSE.txt for license information.
+
+import {Q, type Model} from '@nozbe/watermelondb';
+
+import DatabaseManager from '@database/manager';
+import {logError} from '@utils/log';
+
+/**
+ * Reloads the records saved natively while handling a push notification,
+ * the cached records are loaded again and the observers of each table are notified.
+ */
+export async function reloadChangedRecords(serverUrl: string, changes: Record<string, string[]>) {
+    try {
+        const {database} = DatabaseManager.getServerDatabaseAndOperator(serverUrl);
+        const tables = Object.entries(changes).filter(([table, ids]) => ids.length && database.schema.tables[table]);
+        if (!tables.length) {
+            return {};
+        }
+
+        // The cached models hold the values read before the native write, the collections are reset so that
+        // the records are loaded again from the database, saving them unchanged notifies the observers
+        await database.write(async (writer) => {
+            const models: Model[] = [];
+            for (const [table, ids] of tables) {
+                const collection = database.get(table);
+                collection.unsafeClearCache();
+                // eslint-disable-next-line no-await-in-loop
+                const records = await collection.query(Q.where('id', Q.oneOf(ids))).fetch();
+                models.push(...records.map((record) => record.prepareUpdate(() => undefined)));
+            }
+
+            if (models.length) {
+                await writer.batch(...models);
+            }
+        }, 'reloadChangedRecords');
+
+        return {};
+    } catch (error) {
+        logError('Failed reloadChangedRecords', error);
+        return {error};
+    }
+}
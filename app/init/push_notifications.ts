@@ -2,7 +2,7 @@
 // See LICENSE.txt for license information.
 
 import RNUtils from '@mattermost/rnutils/src';
-import {AppState, DeviceEventEmitter, Platform, type EmitterSubscription} from 'react-native';
+import {AppState, DeviceEventEmitter, NativeEventEmitter, Platform, type EmitterSubscription} from 'react-native';
 import {
     Notification,
     NotificationAction,
@@ -17,6 +17,7 @@ import {requestNotifications} from 'react-native-permissions';
 
 import {storeDeviceToken} from '@actions/app/global';
 import {markChannelAsViewed} from '@actions/local/channel';
+import {reloadChangedRecords} from '@actions/local/notification';
 import {updateThread} from '@actions/local/thread';
 import {backgroundNotification, openNotification} from '@actions/remote/notifications';
 import {isCallsStartedMessage} from '@calls/utils';
@@ -34,6 +35,12 @@ import {isMainActivity, isTablet} from '@utils/helpers';
 import {logDebug, logInfo} from '@utils/log';
 import {convertToNotificationData} from '@utils/notification';
 
+type NotificationsReceivedEvent = {
+    notifications: Array<Record<string, any>>;
+};
+
+const notificationsEmitter = new NativeEventEmitter(RNUtils);
+
 class PushNotifications {
     configured = false;
     subscriptions?: EmitterSubscription[];
@@ -47,6 +54,10 @@ class PushNotifications {
             Notifications.events().registerNotificationReceivedForeground(this.onNotificationReceivedForeground),
         ];
 
+        if (Platform.OS === 'android') {
+            this.subscriptions.push(notificationsEmitter.addListener('NotificationsReceived', this.onNotificationsReceived));
+        }
+
         if (register) {
             this.registerIfNeeded();
         }
@@ -173,6 +184,11 @@ class PushNotifications {
         const {payload, foreground, userInteraction} = notification;
         const serverUrl = await this.getServerUrlFromNotification(notification);
         if (serverUrl) {
+            if (payload?.changes) {
+                // The notification data was saved natively (Android), reload the records that changed
+                await reloadChangedRecords(serverUrl, payload.changes);
+            }
+
             if (foreground) {
                 // Move this to a local action
                 this.handleInAppNotification(serverUrl, notification);
@@ -245,9 +261,27 @@ class PushNotifications {
     // This triggers when the app was in the foreground (Android and iOS)
     // Also triggers when the app was in the background (Android)
     onNotificationReceivedForeground = (incoming: Notification, completion: (response: NotificationCompletion) => void) => {
+        const notification = this.handleReceivedNotification(incoming);
+        if (!notification) {
+            return;
+        }
+
+        // Always play a sound, except when this is a foreground notification about a call
+        const sound = !(notification.foreground && isCallsStartedMessage(notification.payload));
+        completion({alert: false, sound, badge: true});
+    };
+
+    // This triggers with the notifications received natively since the last event (Android)
+    onNotificationsReceived = ({notifications}: NotificationsReceivedEvent) => {
+        for (const payload of notifications) {
+            this.handleReceivedNotification(new Notification(payload));
+        }
+    };
+
+    handleReceivedNotification = (incoming: Notification) => {
         if (incoming.payload.verified === 'false') {
             logDebug('not handling foreground notification because it was not verified, ackId=', incoming.payload.ackId);
-            return;
+            return undefined;
         }
         const notification = convertToNotificationData(incoming, false);
         if (AppState.currentState !== 'inactive') {
@@ -256,9 +290,7 @@ class PushNotifications {
             this.processNotification(notification);
         }
 
-        // Always play a sound, except when this is a foreground notification about a call
-        const sound = !(notification.foreground && isCallsStartedMessage(notification.payload));
-        completion({alert: false, sound, badge: true});
+        return notification;
     };
 
     onRemoteNotificationsRegistered = async (event: Registered) => {
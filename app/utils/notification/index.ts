@@ -42,6 +42,7 @@ export const convertToNotificationData = (notification: Notification, tapped = t
             version: payload.version,
             isCRTEnabled: typeof payload.is_crt_enabled === 'string' ? payload.is_crt_enabled === 'true' : Boolean(payload.is_crt_enabled),
             data: payload.data,
+            changes: payload.changes,
         },
         userInteraction: tapped,
         foreground: false,
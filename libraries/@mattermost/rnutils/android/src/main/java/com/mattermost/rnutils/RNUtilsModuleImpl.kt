@@ -8,6 +8,7 @@ import com.facebook.react.bridge.ReactApplicationContext
 import com.facebook.react.bridge.ReadableMap
 import com.facebook.react.bridge.WritableMap
 import com.mattermost.rnutils.helpers.Notifications
+import com.mattermost.rnutils.helpers.PushNotificationTracer
 import com.mattermost.rnutils.helpers.RealPathUtil
 import com.mattermost.rnutils.helpers.SaveDataTask
 import com.mattermost.rnutils.helpers.SplitView
@@ -106,4 +107,8 @@ class RNUtilsModuleImpl(private val reactContext: ReactApplicationContext) {
     fun removeServerNotifications(serverUrl: String?) {
         serverUrl?.let { Notifications.removeServerNotifications(it) }
     }
+
+    fun getPushNotificationMetrics(promise: Promise?) {
+        promise?.resolve(PushNotificationTracer.getMetrics())
+    }
 }
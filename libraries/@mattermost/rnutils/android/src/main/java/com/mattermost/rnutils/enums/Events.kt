@@ -2,5 +2,6 @@ package com.mattermost.rnutils.enums
 
 enum class Events(val event: String) {
     SAVE_ERROR_EVENT("SaveError"),
-    SPLIT_VIEW_CHANGED("SplitViewChanged")
+    SPLIT_VIEW_CHANGED("SplitViewChanged"),
+    NOTIFICATIONS_RECEIVED("NotificationsReceived")
 }
@@ -234,20 +234,63 @@ object NotificationHelper {
     }
 
     fun clearChannelOrThreadNotifications(context: Context, notification: Bundle) {
-        val serverUrl = notification.getString("server_url")
-        val channelId = notification.getString("channel_id")
-        val rootId = notification.getString("root_id")
-        if (channelId != null) {
+        clearChannelOrThreadNotifications(context, listOf(notification))
+    }
+
+    /**
+     * Clears the notifications of several channels and threads at once, the notifications map
+     * is loaded and saved once and the delivered notifications are scanned a single time.
+     */
+    fun clearChannelOrThreadNotifications(context: Context, notifications: List<Bundle>) {
+        val channelIds = HashMap<String, String?>()
+        val threadIds = HashMap<String, String?>()
+        for (notification in notifications) {
+            val channelId = notification.getString("channel_id") ?: continue
+            val rootId = notification.getString("root_id")
             val isCRTEnabled = notification.containsKey("is_crt_enabled") && notification.getString("is_crt_enabled") == "true"
             // rootId is available only when CRT is enabled & clearing the thread
-            val isClearThread = isCRTEnabled && !TextUtils.isEmpty(rootId)
-
-            if (isClearThread) {
-                removeThreadNotifications(context, serverUrl, rootId)
+            if (isCRTEnabled && !rootId.isNullOrEmpty()) {
+                threadIds[rootId] = notification.getString("server_url")
             } else {
-                removeChannelNotifications(context, serverUrl, channelId)
+                channelIds[channelId] = notification.getString("server_url")
             }
         }
+
+        if (channelIds.isEmpty() && threadIds.isEmpty()) {
+            return
+        }
+
+        val notificationManager = NotificationManagerCompat.from(context)
+        val notificationsPerServer = loadMap(context)
+        for ((channelId, serverUrl) in channelIds) {
+            notificationsPerServer[serverUrl]?.remove(channelId)
+        }
+
+        for (sbn in getDeliveredNotifications(context)) {
+            val bundle = sbn.notification.extras
+            val cId = bundle.getString("channel_id")
+            val rootId = bundle.getString("root_id")
+            val postId = bundle.getString("post_id")
+            val isCRTEnabled = bundle.containsKey("is_crt_enabled") && bundle.getString("is_crt_enabled") == "true"
+            val skipThreadNotification = isCRTEnabled && !TextUtils.isEmpty(rootId)
+
+            if (cId != null && channelIds.containsKey(cId) && !skipThreadNotification) {
+                notificationManager.cancel(sbn.id)
+            } else if (rootId != null && threadIds.containsKey(rootId)) {
+                notificationManager.cancel(sbn.id)
+            } else if (postId != null && threadIds.containsKey(postId)) {
+                // The root post of the thread is kept in the channel group
+                if (cId != null) {
+                    notificationsPerServer[threadIds[postId]]?.optJSONObject(cId)?.remove(sbn.id.toString())
+                }
+                notificationManager.cancel(sbn.id)
+            }
+        }
+
+        for ((threadId, serverUrl) in threadIds) {
+            notificationsPerServer[serverUrl]?.remove(threadId)
+        }
+        saveMap(context, notificationsPerServer)
     }
 
 
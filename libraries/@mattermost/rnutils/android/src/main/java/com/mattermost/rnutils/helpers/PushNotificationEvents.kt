@@ -0,0 +1,56 @@
+package com.mattermost.rnutils.helpers
+
+import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import com.facebook.react.bridge.Arguments
+import com.mattermost.rnutils.RNUtilsModuleImpl
+import com.mattermost.rnutils.enums.Events
+
+/**
+ * Delivers the received push notifications to JS in batches, notifications received within
+ * the flush interval are sent in a single event.
+ *
+ * The notification data is saved natively, each notification only carries the ids of the records
+ * that changed per table so that the app reloads them.
+ */
+object PushNotificationEvents {
+    private const val FLUSH_INTERVAL_MS = 50L
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val pending = ArrayList<Bundle>()
+
+    fun enqueue(notification: Bundle) {
+        val isFirst: Boolean
+        synchronized(pending) {
+            isFirst = pending.isEmpty()
+            pending.add(notification)
+        }
+
+        if (isFirst) {
+            handler.postDelayed({ flush() }, FLUSH_INTERVAL_MS)
+        }
+    }
+
+    private fun flush() {
+        val batch: List<Bundle>
+        synchronized(pending) {
+            batch = ArrayList(pending)
+            pending.clear()
+        }
+
+        if (batch.isEmpty()) {
+            return
+        }
+
+        val notifications = Arguments.createArray()
+        for (notification in batch) {
+            notifications.pushMap(Arguments.fromBundle(notification))
+        }
+        val event = Arguments.createMap()
+        event.putArray("notifications", notifications)
+        RNUtilsModuleImpl.sendJSEvent(Events.NOTIFICATIONS_RECEIVED.event, event)
+        PushNotificationTracer.increment("js_events")
+        PushNotificationTracer.increment("js_notifications", batch.size.toLong())
+    }
+}
@@ -0,0 +1,172 @@
+package com.mattermost.rnutils.helpers
+
+import android.os.SystemClock
+import com.facebook.react.bridge.Arguments
+import com.facebook.react.bridge.WritableMap
+
+/**
+ * Keeps per stage latency histograms of the push notification processing pipeline,
+ * the most recent traces and any counters registered by the native push handling.
+ *
+ * Histograms are computed over a rolling window of the latest samples of each stage.
+ */
+object PushNotificationTracer {
+    private const val MAX_SAMPLES = 200
+    private const val MAX_TRACES = 50
+
+    private val samples = HashMap<String, ArrayDeque<Long>>()
+    private val traces = ArrayDeque<Trace>()
+    private val counters = HashMap<String, Long>()
+    private val metricProviders = LinkedHashMap<String, () -> Map<String, Long>>()
+
+    class Trace(val id: String) {
+        private val startedAt = System.currentTimeMillis()
+        private val start = SystemClock.elapsedRealtime()
+        private val stages = ArrayList<Triple<String, Long, Long>>()
+        private var totalMs: Long? = null
+
+        fun record(stage: String, startedAtMs: Long, durationMs: Long) {
+            synchronized(stages) {
+                stages.add(Triple(stage, startedAtMs - start, durationMs))
+            }
+            PushNotificationTracer.record(stage, durationMs)
+        }
+
+        inline fun <T> measure(stage: String, block: () -> T): T {
+            val stageStart = SystemClock.elapsedRealtime()
+            try {
+                return block()
+            } finally {
+                record(stage, stageStart, SystemClock.elapsedRealtime() - stageStart)
+            }
+        }
+
+        fun elapsed(): Long = SystemClock.elapsedRealtime() - start
+
+        fun finish() {
+            val total = elapsed()
+            totalMs = total
+            PushNotificationTracer.finish(this, total)
+        }
+
+        internal fun toMap(): WritableMap {
+            val map = Arguments.createMap()
+            map.putString("id", id)
+            map.putDouble("startedAt", startedAt.toDouble())
+            totalMs?.let { map.putDouble("totalMs", it.toDouble()) }
+            val stagesArray = Arguments.createArray()
+            synchronized(stages) {
+                for ((name, offset, duration) in stages) {
+                    val stage = Arguments.createMap()
+                    stage.putString("name", name)
+                    stage.putDouble("startMs", offset.toDouble())
+                    stage.putDouble("durationMs", duration.toDouble())
+                    stagesArray.pushMap(stage)
+                }
+            }
+            map.putArray("stages", stagesArray)
+            return map
+        }
+    }
+
+    fun begin(id: String): Trace = Trace(id)
+
+    inline fun <T> measure(trace: Trace?, stage: String, block: () -> T): T {
+        if (trace != null) {
+            return trace.measure(stage, block)
+        }
+
+        val stageStart = SystemClock.elapsedRealtime()
+        try {
+            return block()
+        } finally {
+            record(stage, SystemClock.elapsedRealtime() - stageStart)
+        }
+    }
+
+    @JvmStatic
+    fun record(stage: String, durationMs: Long) {
+        synchronized(samples) {
+            val window = samples.getOrPut(stage) { ArrayDeque() }
+            if (window.size >= MAX_SAMPLES) {
+                window.removeFirst()
+            }
+            window.addLast(durationMs)
+        }
+    }
+
+    @JvmStatic
+    fun increment(counter: String, by: Long = 1) {
+        synchronized(counters) {
+            counters[counter] = (counters[counter] ?: 0L) + by
+        }
+    }
+
+    fun registerMetrics(name: String, provider: () -> Map<String, Long>) {
+        synchronized(metricProviders) {
+            metricProviders[name] = provider
+        }
+    }
+
+    fun getMetrics(): WritableMap {
+        val result = Arguments.createMap()
+
+        val histograms = Arguments.createMap()
+        synchronized(samples) {
+            for ((stage, window) in samples) {
+                val sorted = window.sorted()
+                val histogram = Arguments.createMap()
+                histogram.putInt("count", sorted.size)
+                histogram.putDouble("p50", percentile(sorted, 0.5).toDouble())
+                histogram.putDouble("p95", percentile(sorted, 0.95).toDouble())
+                histogram.putDouble("p99", percentile(sorted, 0.99).toDouble())
+                histogram.putDouble("max", (sorted.lastOrNull() ?: 0L).toDouble())
+                histograms.putMap(stage, histogram)
+            }
+        }
+        result.putMap("stages", histograms)
+
+        val countersMap = Arguments.createMap()
+        synchronized(counters) {
+            for ((counter, value) in counters) {
+                countersMap.putDouble(counter, value.toDouble())
+            }
+        }
+        synchronized(metricProviders) {
+            for ((name, provider) in metricProviders) {
+                for ((key, value) in provider()) {
+                    countersMap.putDouble("$name.$key", value.toDouble())
+                }
+            }
+        }
+        result.putMap("counters", countersMap)
+
+        val tracesArray = Arguments.createArray()
+        synchronized(traces) {
+            for (trace in traces) {
+                tracesArray.pushMap(trace.toMap())
+            }
+        }
+        result.putArray("traces", tracesArray)
+
+        return result
+    }
+
+    private fun finish(trace: Trace, totalMs: Long) {
+        record("total", totalMs)
+        synchronized(traces) {
+            if (traces.size >= MAX_TRACES) {
+                traces.removeFirst()
+            }
+            traces.addLast(trace)
+        }
+    }
+
+    private fun percentile(sorted: List<Long>, percentile: Double): Long {
+        if (sorted.isEmpty()) {
+            return 0
+        }
+        val index = (Math.ceil(percentile * sorted.size).toInt() - 1).coerceIn(0, sorted.size - 1)
+        return sorted[index]
+    }
+}
@@ -62,4 +62,8 @@ class RNUtilsModule(val reactContext: ReactApplicationContext) : NativeRNUtilsSp
     override fun removeServerNotifications(serverUrl: String?) {
         implementation.removeServerNotifications(serverUrl)
     }
+
+    override fun getPushNotificationMetrics(promise: Promise?) {
+        implementation.getPushNotificationMetrics(promise)
+    }
 }
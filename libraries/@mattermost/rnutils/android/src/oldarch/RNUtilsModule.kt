@@ -83,4 +83,9 @@ class RNUtilsModule(context: ReactApplicationContext) :
     fun removeServerNotifications(serverUrl: String?) {
         implementation.removeServerNotifications(serverUrl)
     }
+
+    @ReactMethod
+    fun getPushNotificationMetrics(promise: Promise?) {
+        implementation.getPushNotificationMetrics(promise)
+    }
 }
@@ -99,6 +99,11 @@ RCT_REMAP_METHOD(removeServerNotifications, serverUrl:(NSString *)serverUrl) {
     [self removeServerNotifications:serverUrl];
 }
 
+RCT_EXPORT_METHOD(getPushNotificationMetrics:(RCTPromiseResolveBlock)resolve
+                  withRejecter:(RCTPromiseRejectBlock)reject) {
+    [self getPushNotificationMetrics:resolve reject:reject];
+}
+
 RCT_EXPORT_METHOD(getRealFilePath:(NSString *)filePath
                   withResolver:(RCTPromiseResolveBlock)resolve
                   withRejecter:(RCTPromiseRejectBlock)reject) {
@@ -185,6 +190,10 @@ RCT_EXPORT_METHOD(saveFile:(NSString *)filePath
     [[NotificationManager shared] removeServerNotificationsWithServerUrl:serverUrl];
 }
 
+- (void)getPushNotificationMetrics:(RCTPromiseResolveBlock)resolve reject:(RCTPromiseRejectBlock)reject {
+    resolve(@{});
+}
+
 - (void)getRealFilePath:(NSString *)filePath resolve:(RCTPromiseResolveBlock)resolve reject:(RCTPromiseRejectBlock)reject {
     resolve(@"");
 }
@@ -57,6 +57,8 @@ export interface Spec extends TurboModule {
     removeChannelNotifications(serverUrl: string, channelId: string): void;
     removeThreadNotifications(serverUrl: string, threadId: string): void;
     removeServerNotifications(serverUrl: string): void;
+
+    getPushNotificationMetrics(): Promise<UnsafeObject>;
 }
 
 export default TurboModuleRegistry.getEnforcing<Spec>('RNUtils');
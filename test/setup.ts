@@ -150,6 +150,7 @@ jest.doMock('react-native', () => {
             removeChannelNotifications: jest.fn().mockImplementation(),
             removeThreadNotifications: jest.fn().mockImplementation(),
             removeServerNotifications: jest.fn().mockImplementation(),
+            getPushNotificationMetrics: jest.fn().mockResolvedValue({}),
 
             unlockOrientation: jest.fn(),
         },
@@ -42,6 +42,7 @@ interface NotificationData {
     version: string;
     isCRTEnabled: boolean;
     data?: NotificationExtraData;
+    changes?: Record<string, string[]>;
 }
 
 interface NotificationExtraData {